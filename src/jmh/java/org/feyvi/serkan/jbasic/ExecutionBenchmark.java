@@ -0,0 +1,119 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Runs small programs that each stress one part of the runtime, on every
+ engine. Every benchmark returns a variable of the finished run so the
+ work cannot be optimized away.
+
+ The parsed program is shared between invocations, as a parsed JBasic is
+ immutable. The compiler and VM engines translate the program on the
+ first run, which happens during warmup, as does the promotion of the
+ tiered engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionBenchmark {
+    @Param({"INTERPRETER", "COMPILER", "VM", "TIERED"})
+    public Engine engine;
+
+    private final PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+    private JBasic arithmetic;
+    private JBasic gotoLoop;
+    private JBasic forLoop;
+    private JBasic builtins;
+    private JBasic mandelbrot;
+
+    @Setup
+    public void setup() throws IOException {
+        arithmetic = parse(
+                "10 LET S = 0",
+                "20 FOR I = 1 TO 100000",
+                "30 LET S = S * 0.5 + I * I - I / 3 + (I - 1) ^ 2",
+                "40 NEXT I");
+        gotoLoop = parse(
+                "10 LET N = 0",
+                "20 GOTO 50",
+                "30 LET N = N + 1",
+                "40 GOTO 70",
+                "50 LET N = N + 1",
+                "60 GOTO 30",
+                "70 IF N < 100000 THEN GOTO 20");
+        forLoop = parse(
+                "10 LET S = 0",
+                "20 FOR I = 1 TO 300",
+                "30 FOR J = 1 TO 300",
+                "40 LET S = S + 1",
+                "50 NEXT J",
+                "60 NEXT I");
+        builtins = parse(
+                "10 LET S = 0",
+                "20 FOR I = 1 TO 100000",
+                "30 LET S = S + SQR(I) + ABS(SIN(I)) + COS(I) + ROUND(I / 7) + SGN(I) + CEIL(I / 3) + EXP(-I)",
+                "40 NEXT I");
+        String[] source = Files.readAllLines(Paths.get("samples", "mandelbrot.bas")).toArray(new String[0]);
+        mandelbrot = parse(new JBasicOptions().engine(engine).headless(), source);
+    }
+
+    private JBasic parse(String... source) {
+        return parse(new JBasicOptions().engine(engine), source);
+    }
+
+    private static JBasic parse(JBasicOptions options, String... source) {
+        JBasic interpreter = new JBasic(Arrays.asList(source), options);
+        if (!interpreter.getErrors().isEmpty()) {
+            throw new IllegalStateException(interpreter.getErrors().toString());
+        }
+        return interpreter;
+    }
+
+    private double run(JBasic interpreter, String result) {
+        JBasicContext context = interpreter.createContext(sink);
+        interpreter.run(context);
+        return context.getVariable(result);
+    }
+
+    @Benchmark
+    public double arithmetic() {
+        return run(arithmetic, "S");
+    }
+
+    @Benchmark
+    public double gotoLoop() {
+        return run(gotoLoop, "N");
+    }
+
+    @Benchmark
+    public double forLoop() {
+        return run(forLoop, "S");
+    }
+
+    @Benchmark
+    public double builtins() {
+        return run(builtins, "S");
+    }
+
+    @Benchmark
+    public double mandelbrot() {
+        return run(mandelbrot, "C");
+    }
+}
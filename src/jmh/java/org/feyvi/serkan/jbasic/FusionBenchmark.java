@@ -0,0 +1,77 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ The interpreter with and without statement fusion, see Fuser. letRun
+ is a loop body of LET statements only, mandelbrot mixes short runs with
+ IF and GOTO. Fusion pays off where the interpreter loop sees many kinds
+ of statement, as in mandelbrot, and not where it sees only two.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FusionBenchmark {
+    @Param({"true", "false"})
+    public boolean fuse;
+
+    private final PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+    private JBasic letRun;
+    private JBasic mandelbrot;
+
+    @Setup
+    public void setup() throws IOException {
+        letRun = parse(new JBasicOptions().fuse(fuse),
+                "10 LET S = 0",
+                "20 LET I = 0",
+                "30 LET A = I * 2",
+                "40 LET B = A + 1",
+                "50 LET C = B * B",
+                "60 LET S = S + C - A",
+                "70 LET I = I + 1",
+                "80 IF I < 100000 THEN GOTO 30");
+        String[] source = Files.readAllLines(Paths.get("samples", "mandelbrot.bas")).toArray(new String[0]);
+        mandelbrot = parse(new JBasicOptions().fuse(fuse).headless(), source);
+    }
+
+    private static JBasic parse(JBasicOptions options, String... source) {
+        JBasic interpreter = new JBasic(Arrays.asList(source), options);
+        if (!interpreter.getErrors().isEmpty()) {
+            throw new IllegalStateException(interpreter.getErrors().toString());
+        }
+        return interpreter;
+    }
+
+    private double run(JBasic interpreter, String result) {
+        JBasicContext context = interpreter.createContext(sink);
+        interpreter.run(context);
+        return context.getVariable(result);
+    }
+
+    @Benchmark
+    public double letRun() {
+        return run(letRun, "S");
+    }
+
+    @Benchmark
+    public double mandelbrot() {
+        return run(mandelbrot, "C");
+    }
+}
@@ -0,0 +1,94 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ A 64 by 64 matrix product and sum, written as FOR loops and as MAT
+ statements, on the compiler. vectorize switches MatKernels between the
+ scalar and the Vector API kernels; the loops do not use them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class MatBenchmark {
+    private static final int N = 63;
+
+    @Param({"true", "false"})
+    public boolean vectorize;
+
+    private final PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+    private JBasic loops;
+    private JBasic mat;
+
+    @Setup
+    public void setup() {
+        JBasicOptions options = new JBasicOptions().engine(Engine.COMPILER).vectorize(vectorize);
+        loops = parse(options,
+                "100 FOR I = 0 TO " + N,
+                "110 FOR J = 0 TO " + N,
+                "120 LET S = 0",
+                "130 FOR K = 0 TO " + N,
+                "140 LET S = S + A(I, K) * B(K, J)",
+                "150 NEXT K",
+                "160 LET C(I, J) = S",
+                "170 NEXT J",
+                "180 NEXT I",
+                "200 FOR I = 0 TO " + N,
+                "210 FOR J = 0 TO " + N,
+                "220 LET D(I, J) = A(I, J) + C(I, J)",
+                "230 NEXT J",
+                "240 NEXT I");
+        mat = parse(options,
+                "100 MAT C = A * B",
+                "200 MAT D = A + C");
+    }
+
+    private static JBasic parse(JBasicOptions options, String... body) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 DIM A(" + N + ", " + N + "), B(" + N + ", " + N + "), C(" + N + ", " + N + "), D(" + N + ", " + N + ")",
+                "20 FOR I = 0 TO " + N,
+                "30 FOR J = 0 TO " + N,
+                "40 LET A(I, J) = I + J",
+                "50 LET B(I, J) = I - J",
+                "60 NEXT J",
+                "70 NEXT I"));
+        source.addAll(Arrays.asList(body));
+        JBasic interpreter = new JBasic(source, options);
+        if (!interpreter.getErrors().isEmpty()) {
+            throw new IllegalStateException(interpreter.getErrors().toString());
+        }
+        return interpreter;
+    }
+
+    private double run(JBasic interpreter) {
+        JBasicContext context = interpreter.createContext(sink);
+        interpreter.run(context);
+        return context.arrays[3].values[N];
+    }
+
+    @Benchmark
+    public double loops() {
+        return run(loops);
+    }
+
+    @Benchmark
+    public double mat() {
+        return run(mat);
+    }
+}
@@ -0,0 +1,55 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Parses a generated source of the given number of lines: lexing, parsing,
+ linking and the optimizer pass. Compilation is lazy and not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"1000", "50000"})
+    public int lines;
+
+    private List<String> source;
+
+    @Setup
+    public void setup() {
+        source = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++) {
+            switch (i % 4) {
+                case 0:
+                    source.add(String.format("%d LET X%d = X%d * 2 + SQR(%d) - (Y / 3)", i * 10, i % 100, (i + 1) % 100, i));
+                    break;
+                case 1:
+                    source.add(String.format("%d IF X%d >= 10 THEN LET Y = Y + 1", i * 10, i % 100));
+                    break;
+                case 2:
+                    source.add(String.format("%d FOR I = 1 TO X%d", i * 10, i % 100));
+                    break;
+                default:
+                    source.add(String.format("%d NEXT I", i * 10));
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    public JBasic parse() {
+        return new JBasic(source);
+    }
+}
@@ -0,0 +1,85 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ Storage of a DIM array.
+
+ DIM A(n) holds elements 0 to n, DIM A(n, m) elements (0, 0) to (n, m).
+ Elements are kept in one flat double[], row by row, so A(i, j) is
+ values[i * columns + j]. A one-dimensional array is a single column.
+ Indexes are truncated to integers, like PLOT coordinates.
+ */
+final class BasicArray {
+    final String name;
+    final int rows;
+    final int columns;
+    final boolean twoDimensional;
+    final double[] values;
+
+    private BasicArray(String name, int rows, int columns, boolean twoDimensional) {
+        this.name = name;
+        this.rows = rows;
+        this.columns = columns;
+        this.twoDimensional = twoDimensional;
+        this.values = new double[rows * columns];
+    }
+
+    // allocates the array of a DIM statement, the bounds are the highest indexes
+    static BasicArray create(String name, double rowBound, double columnBound, boolean twoDimensional, int line) {
+        if (!(rowBound >= 0 && columnBound >= 0)) {
+            throw new BasicRuntimeException(line, String.format("Invalid size for array %s", name));
+        }
+        // in double, as bounds like 1E19 overflow a long and their products overflow even more
+        double rows = Math.floor(rowBound) + 1;
+        double columns = Math.floor(columnBound) + 1;
+        if (rows * columns > Integer.MAX_VALUE - 8) {
+            throw new BasicRuntimeException(line, String.format("Array %s is too large", name));
+        }
+        return new BasicArray(name, (int) rows, (int) columns, twoDimensional);
+    }
+
+    // the array in the given slot, which must have been created by a DIM statement
+    static BasicArray of(JBasicContext context, int slot, String name, int line) {
+        BasicArray array = context.arrays[slot];
+        if (array == null) {
+            throw new BasicRuntimeException(line, String.format("Array %s used before DIM", name));
+        }
+        return array;
+    }
+
+    double get(double row, double column, int line) {
+        return values[index(row, column, line)];
+    }
+
+    void set(double row, double column, int line, double value) {
+        values[index(row, column, line)] = value;
+    }
+
+    private int index(double row, double column, int line) {
+        // the negated form also rejects NaN
+        if (!(row >= 0 && row < rows && column >= 0 && column < columns)) {
+            throw new BasicRuntimeException(line, String.format("Index %s out of bounds for %s", describe(row, column),
+                    declaration()));
+        }
+        return (int) row * columns + (int) column;
+    }
+
+    // the array as declared, like A(10) or M(3, 4)
+    String declaration() {
+        return describe(rows - 1, columns - 1);
+    }
+
+    private String describe(double row, double column) {
+        String first = format(row);
+        return twoDimensional ? String.format("%s(%s, %s)", name, first, format(column))
+                : String.format("%s(%s)", name, first);
+    }
+
+    private static String format(double value) {
+        return value == (long) value ? String.valueOf((long) value) : String.valueOf(value);
+    }
+}
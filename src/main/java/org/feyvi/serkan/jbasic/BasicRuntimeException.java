@@ -0,0 +1,25 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ An error of a running program, like an array index out of bounds.
+ The line is the source line index, as in parse errors.
+ */
+public class BasicRuntimeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+
+    BasicRuntimeException(int line, String message) {
+        super(String.format("Error [Line %d]: %s", line, message));
+        this.line = line;
+    }
+
+    public int getLine() {
+        return line;
+    }
+}
@@ -0,0 +1,638 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/*
+ Compiles a parsed program into a single JVM method.
+
+ Every statement gets a bytecode label, so GOTO, NEXT and the exit of a
+ FOR loop become plain jumps. Variables live in local variables of the
+ generated method and are copied back to the context when the method
+ returns. Nodes the compiler has no translation for are called through
+ their run/evalDouble methods; the locals are written to the context
+ before and read back after such calls, and if the call moved the
+ counter, execution continues at the new statement through a
+ tableswitch over all statements.
+
+ The class is loaded with Lookup.defineHiddenClass into this package, so
+ it can use the package-private context fields directly and is unloaded
+ together with its JBasic instance.
+ */
+final class BytecodeCompiler {
+    private static final String CLASS_NAME = "org/feyvi/serkan/jbasic/CompiledBasicProgram";
+    private static final String CONTEXT = Type.getInternalName(JBasicContext.class);
+    private static final String CONTEXT_DESC = Type.getDescriptor(JBasicContext.class);
+    private static final String MATH = "java/lang/Math";
+    private static final String ARRAY = Type.getInternalName(BasicArray.class);
+    private static final int THIS = 0;
+    private static final int CONTEXT_LOCAL = 1;
+    private static final int PC_LOCAL = 2;
+    private static final int FIRST_VAR_LOCAL = 3;
+
+    private final Statement[] program;
+    private final int varCount;
+    private final List<Object> nodes = new ArrayList<>();
+    private final Map<Object, Integer> nodeIndexes = new IdentityHashMap<>();
+    // FOR statements by loop id, the limit and step of each loop are kept in locals
+    private final Map<Integer, ForStatement> loops = new HashMap<>();
+    private int loopCount;
+    private MethodVisitor mv;
+    private Label[] lines;
+    private Label dispatch;
+
+    private BytecodeCompiler(Statement[] program, SymbolTable symbols) {
+        this.program = program;
+        this.varCount = symbols.size();
+    }
+
+    // returns null if the program cannot be compiled, e.g. when it exceeds the JVM method size limit
+    static CompiledProgram compile(Statement[] program, SymbolTable symbols) {
+        BytecodeCompiler compiler = new BytecodeCompiler(program, symbols);
+        try {
+            byte[] classBytes = compiler.generate();
+            if (classBytes == null) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            return (CompiledProgram) lookup.lookupClass()
+                    .getDeclaredConstructor(Object[].class)
+                    .newInstance((Object) compiler.nodes.toArray());
+        } catch (RuntimeException | LinkageError | ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private byte[] generate() {
+        for (Statement statement : program) {
+            collectLoops(statement);
+        }
+        if (firstLoopLocal() + 4L * loopCount > 0xFFFF) {
+            return null;
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return "java/lang/Object";
+            }
+        };
+        cw.visit(V17, ACC_FINAL | ACC_SUPER, CLASS_NAME, null, "java/lang/Object",
+                new String[]{Type.getInternalName(CompiledProgram.class)});
+        cw.visitField(ACC_PRIVATE | ACC_FINAL, "nodes", "[Ljava/lang/Object;", null, null).visitEnd();
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, THIS);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitVarInsn(ALOAD, THIS);
+        init.visitVarInsn(ALOAD, 1);
+        init.visitFieldInsn(PUTFIELD, CLASS_NAME, "nodes", "[Ljava/lang/Object;");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "run", "(" + CONTEXT_DESC + ")V", null, null);
+        mv.visitCode();
+        generateRun();
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private void generateRun() {
+        int n = program.length;
+        lines = new Label[n + 1];
+        for (int i = 0; i <= n; i++) {
+            lines[i] = new Label();
+        }
+        dispatch = new Label();
+
+        reloadVars();
+        for (int loopId = 0; loopId < loopCount; loopId++) {
+            loadLoopState("loopLimits", limitLocal(loopId), loopId);
+            loadLoopState("loopSteps", stepLocal(loopId), loopId);
+        }
+        mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+        mv.visitFieldInsn(GETFIELD, CONTEXT, "counter", "I");
+        mv.visitVarInsn(ISTORE, PC_LOCAL);
+        mv.visitJumpInsn(GOTO, dispatch);
+
+        for (int i = 0; i < n; i++) {
+            mv.visitLabel(lines[i]);
+            generateStatement(program[i], i);
+        }
+
+        // falling off the last statement ends the program
+        mv.visitLabel(lines[n]);
+        spillVars();
+        mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+        pushInt(n);
+        mv.visitFieldInsn(PUTFIELD, CONTEXT, "counter", "I");
+        mv.visitInsn(RETURN);
+
+        mv.visitLabel(dispatch);
+        if (n == 0) {
+            mv.visitJumpInsn(GOTO, lines[n]);
+        } else {
+            mv.visitVarInsn(ILOAD, PC_LOCAL);
+            mv.visitTableSwitchInsn(0, n - 1, lines[n], Arrays.copyOf(lines, n));
+        }
+    }
+
+    private void generateStatement(Statement statement, int index) {
+        if (statement instanceof LetStatement) {
+            LetStatement let = (LetStatement) statement;
+            generateExpression(let.expr);
+            mv.visitVarInsn(DSTORE, varLocal(let.slot));
+        } else if (statement instanceof ArrayLetStatement) {
+            ArrayLetStatement let = (ArrayLetStatement) statement;
+            pushArray(let.element);
+            generateIndexes(let.element);
+            generateExpression(let.expr);
+            mv.visitMethodInsn(INVOKEVIRTUAL, ARRAY, "set", "(DDID)V", false);
+        } else if (statement instanceof PrintStatement) {
+            for (BasicExpression expr : ((PrintStatement) statement).expressions) {
+                mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+                mv.visitFieldInsn(GETFIELD, CONTEXT, "out", Type.getDescriptor(OutputSink.class));
+                generateExpression(expr);
+                mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(OutputSink.class), "println", "(D)V", false);
+            }
+        } else if (statement instanceof GotoStatement && !(statement instanceof GosubStatement)
+                && jumpTarget((GotoStatement) statement) >= 0) {
+            mv.visitJumpInsn(GOTO, lines[jumpTarget((GotoStatement) statement)]);
+        } else if (statement instanceof GosubStatement && jumpTarget((GotoStatement) statement) >= 0) {
+            mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+            pushInt(index + 1);
+            pushInt(((GosubStatement) statement).line);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "pushReturn", "(II)V", false);
+            mv.visitJumpInsn(GOTO, lines[jumpTarget((GotoStatement) statement)]);
+        } else if (statement instanceof ReturnStatement) {
+            mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+            pushInt(((ReturnStatement) statement).line);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "popReturn", "(I)I", false);
+            mv.visitVarInsn(ISTORE, PC_LOCAL);
+            mv.visitJumpInsn(GOTO, dispatch);
+        } else if (statement instanceof ParallelForStatement) {
+            generateStatementCall(statement, index);
+        } else if (statement instanceof ForStatement) {
+            generateFor((ForStatement) statement, index);
+        } else if (statement instanceof NextStatement
+                && loops.get(((NextStatement) statement).loopId) instanceof ParallelForStatement) {
+            generateReturn(index);
+        } else if (statement instanceof NextStatement) {
+            generateNext((NextStatement) statement);
+        } else if (statement instanceof PlotStatement) {
+            PlotStatement plot = (PlotStatement) statement;
+            mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+            mv.visitFieldInsn(GETFIELD, CONTEXT, "screen", Type.getDescriptor(FrameBuffer.class));
+            generateExpression(plot.x);
+            mv.visitInsn(D2I);
+            generateExpression(plot.y);
+            mv.visitInsn(D2I);
+            generateExpression(plot.c);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(FrameBuffer.class), "plot", "(IID)V", false);
+        } else if (statement instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) statement;
+            generateCondition(ifStatement.condition, lines[index + 1]);
+            generateStatement(ifStatement.thenStatement, index);
+        } else {
+            generateStatementCall(statement, index);
+        }
+    }
+
+    // same as ForStatement.run, with the limit and step in locals
+    private void generateFor(ForStatement forStatement, int index) {
+        int var = varLocal(forStatement.slot);
+        int limit = limitLocal(forStatement.loopId);
+        int step = stepLocal(forStatement.loopId);
+        generateExpression(forStatement.start);
+        generateExpression(forStatement.end);
+        mv.visitVarInsn(DSTORE, limit);
+        if (forStatement.step == null) {
+            mv.visitInsn(DCONST_1);
+        } else {
+            generateExpression(forStatement.step);
+        }
+        mv.visitVarInsn(DSTORE, step);
+        mv.visitVarInsn(DSTORE, var);
+
+        Label exit = new Label();
+        Label body = lines[index + 1];
+        int sign = stepSign(forStatement);
+        if (sign == 0) {
+            Label negative = new Label();
+            mv.visitVarInsn(DLOAD, step);
+            mv.visitInsn(DCONST_0);
+            mv.visitInsn(DCMPL);
+            mv.visitJumpInsn(IFLT, negative);
+            generateLimitCheck(var, limit, DCMPL, IFGT, exit);
+            mv.visitJumpInsn(GOTO, body);
+            mv.visitLabel(negative);
+            generateLimitCheck(var, limit, DCMPG, IFLT, exit);
+        } else if (sign > 0) {
+            generateLimitCheck(var, limit, DCMPL, IFGT, exit);
+        } else {
+            generateLimitCheck(var, limit, DCMPG, IFLT, exit);
+        }
+        mv.visitJumpInsn(GOTO, body);
+
+        mv.visitLabel(exit);
+        if (forStatement.endFor >= 0 && forStatement.endFor <= program.length) {
+            mv.visitJumpInsn(GOTO, lines[forStatement.endFor]);
+        } else {
+            pushInt(forStatement.endFor);
+            mv.visitVarInsn(ISTORE, PC_LOCAL);
+            mv.visitJumpInsn(GOTO, dispatch);
+        }
+    }
+
+    // same as NextStatement.run
+    private void generateNext(NextStatement next) {
+        int var = varLocal(next.slot);
+        int limit = limitLocal(next.loopId);
+        int step = stepLocal(next.loopId);
+        mv.visitVarInsn(DLOAD, var);
+        mv.visitVarInsn(DLOAD, step);
+        mv.visitInsn(DADD);
+        mv.visitVarInsn(DSTORE, var);
+
+        Label body = lines[next.bodyStart];
+        int sign = stepSign(loops.get(next.loopId));
+        if (sign == 0) {
+            Label negative = new Label();
+            mv.visitVarInsn(DLOAD, step);
+            mv.visitInsn(DCONST_0);
+            mv.visitInsn(DCMPL);
+            mv.visitJumpInsn(IFLT, negative);
+            generateLimitCheck(var, limit, DCMPG, IFLE, body);
+            Label done = new Label();
+            mv.visitJumpInsn(GOTO, done);
+            mv.visitLabel(negative);
+            generateLimitCheck(var, limit, DCMPL, IFGE, body);
+            mv.visitLabel(done);
+        } else if (sign > 0) {
+            generateLimitCheck(var, limit, DCMPG, IFLE, body);
+        } else {
+            generateLimitCheck(var, limit, DCMPL, IFGE, body);
+        }
+    }
+
+    // jumps to target if the comparison of the variable with the limit holds, false for NaN as in Java
+    private void generateLimitCheck(int var, int limit, int compareOpcode, int jumpOpcode, Label target) {
+        mv.visitVarInsn(DLOAD, var);
+        mv.visitVarInsn(DLOAD, limit);
+        mv.visitInsn(compareOpcode);
+        mv.visitJumpInsn(jumpOpcode, target);
+    }
+
+    // 1 if the loop counts up, -1 if it counts down, 0 if the step is only known at run time
+    private static int stepSign(ForStatement forStatement) {
+        if (forStatement == null) {
+            return 0;
+        }
+        if (forStatement.step == null) {
+            return 1;
+        }
+        if (Optimizer.isConstant(forStatement.step)) {
+            double step = forStatement.step.value;
+            return step >= 0 ? 1 : step < 0 ? -1 : 0;
+        }
+        return 0;
+    }
+
+    private void loadLoopState(String field, int local, int loopId) {
+        mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+        mv.visitFieldInsn(GETFIELD, CONTEXT, field, "[D");
+        pushInt(loopId);
+        mv.visitInsn(DALOAD);
+        mv.visitVarInsn(DSTORE, local);
+    }
+
+    /*
+     The NEXT of a PARALLEL FOR is only reached by the loop's workers, which
+     run one iteration per call: it stores the variables and returns with
+     the counter at the NEXT.
+     */
+    private void generateReturn(int index) {
+        spillVars();
+        mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+        pushInt(index);
+        mv.visitFieldInsn(PUTFIELD, CONTEXT, "counter", "I");
+        mv.visitInsn(RETURN);
+    }
+
+    // runs a statement through its own run method, then follows the counter if it changed
+    private void generateStatementCall(Statement statement, int index) {
+        spillVars();
+        mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+        pushInt(index + 1);
+        mv.visitFieldInsn(PUTFIELD, CONTEXT, "counter", "I");
+        pushNode(statement, Statement.class);
+        mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+        mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(Statement.class), "run",
+                "(" + CONTEXT_DESC + ")V", false);
+        reloadVars();
+        mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+        mv.visitFieldInsn(GETFIELD, CONTEXT, "counter", "I");
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ISTORE, PC_LOCAL);
+        pushInt(index + 1);
+        mv.visitJumpInsn(IF_ICMPNE, dispatch);
+    }
+
+    // jumps to isFalse unless the expression passes the test of IF, without computing a 1.0/0.0 value
+    // for comparisons, AND, OR and NOT
+    private void generateCondition(BasicExpression expr, Label isFalse) {
+        if (expr instanceof AndNode) {
+            generateCondition(((AndNode) expr).left, isFalse);
+            generateCondition(((AndNode) expr).right, isFalse);
+        } else if (expr instanceof OrNode) {
+            Label isTrue = new Label();
+            Label tryRight = new Label();
+            generateCondition(((OrNode) expr).left, tryRight);
+            mv.visitJumpInsn(GOTO, isTrue);
+            mv.visitLabel(tryRight);
+            generateCondition(((OrNode) expr).right, isFalse);
+            mv.visitLabel(isTrue);
+        } else if (expr instanceof NotNode) {
+            Label operandFalse = new Label();
+            generateCondition(((NotNode) expr).operand, operandFalse);
+            mv.visitJumpInsn(GOTO, isFalse);
+            mv.visitLabel(operandFalse);
+        } else if (expr instanceof BinaryNode && comparisonJump((BinaryNode) expr) != 0) {
+            BinaryNode node = (BinaryNode) expr;
+            generateExpression(node.left);
+            generateExpression(node.right);
+            // the inverse jump, with the NaN result of DCMPL/DCMPG making the comparison false
+            int jump = comparisonJump(node);
+            mv.visitInsn(jump == IFLT || jump == IFLE ? DCMPG : DCMPL);
+            mv.visitJumpInsn(inverse(jump), isFalse);
+        } else {
+            generateExpression(expr);
+            mv.visitInsn(DCONST_1);
+            mv.visitInsn(DCMPL);
+            mv.visitJumpInsn(IFNE, isFalse);
+        }
+    }
+
+    // the jump opcode testing the result of a DCMP for a comparison node, 0 for other nodes
+    private static int comparisonJump(BinaryNode node) {
+        if (node instanceof EqNode) {
+            return IFEQ;
+        } else if (node instanceof NeNode) {
+            return IFNE;
+        } else if (node instanceof LessNode) {
+            return IFLT;
+        } else if (node instanceof LessEqNode) {
+            return IFLE;
+        } else if (node instanceof GreaterNode) {
+            return IFGT;
+        } else if (node instanceof GreaterEqNode) {
+            return IFGE;
+        }
+        return 0;
+    }
+
+    private static int inverse(int jump) {
+        switch (jump) {
+            case IFEQ:
+                return IFNE;
+            case IFNE:
+                return IFEQ;
+            case IFLT:
+                return IFGE;
+            case IFLE:
+                return IFGT;
+            case IFGT:
+                return IFLE;
+            default:
+                return IFLT;
+        }
+    }
+
+    private void generateExpression(BasicExpression expr) {
+        if (expr instanceof AndNode || expr instanceof OrNode || expr instanceof NotNode) {
+            Label isFalse = new Label();
+            Label done = new Label();
+            generateCondition(expr, isFalse);
+            mv.visitInsn(DCONST_1);
+            mv.visitJumpInsn(GOTO, done);
+            mv.visitLabel(isFalse);
+            mv.visitInsn(DCONST_0);
+            mv.visitLabel(done);
+        } else if (expr instanceof VariableExpression) {
+            mv.visitVarInsn(DLOAD, varLocal(((VariableExpression) expr).slot));
+        } else if (expr != null && expr.getClass() == BasicExpression.class) {
+            mv.visitLdcInsn(expr.value);
+        } else if (expr instanceof BinaryNode) {
+            generateBinary((BinaryNode) expr);
+        } else if (expr instanceof NegNode) {
+            generateExpression(((NegNode) expr).operand);
+            mv.visitInsn(DNEG);
+        } else if (expr instanceof BuiltinCall) {
+            generateBuiltin((BuiltinCall) expr);
+        } else if (expr instanceof ArrayExpression) {
+            ArrayExpression element = (ArrayExpression) expr;
+            pushArray(element);
+            generateIndexes(element);
+            mv.visitMethodInsn(INVOKEVIRTUAL, ARRAY, "get", "(DDI)D", false);
+        } else {
+            spillVars();
+            pushNode(expr, BasicExpression.class);
+            mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(BasicExpression.class), "evalDouble",
+                    "(" + CONTEXT_DESC + ")D", false);
+        }
+    }
+
+    // BasicArray.of(context, slot, name, line), the array of an element access
+    private void pushArray(ArrayExpression element) {
+        mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+        pushInt(element.slot);
+        mv.visitLdcInsn(element.name);
+        pushInt(element.line);
+        mv.visitMethodInsn(INVOKESTATIC, ARRAY, "of", "(" + CONTEXT_DESC + "ILjava/lang/String;I)L" + ARRAY + ";",
+                false);
+    }
+
+    // row, column and line arguments of BasicArray.get and set
+    private void generateIndexes(ArrayExpression element) {
+        generateExpression(element.row);
+        if (element.column == null) {
+            mv.visitInsn(DCONST_0);
+        } else {
+            generateExpression(element.column);
+        }
+        pushInt(element.line);
+    }
+
+    private void generateBinary(BinaryNode node) {
+        generateExpression(node.left);
+        generateExpression(node.right);
+        if (node instanceof AddNode) {
+            mv.visitInsn(DADD);
+        } else if (node instanceof SubNode) {
+            mv.visitInsn(DSUB);
+        } else if (node instanceof MulNode) {
+            mv.visitInsn(DMUL);
+        } else if (node instanceof DivNode) {
+            mv.visitInsn(DDIV);
+        } else if (node instanceof PowNode) {
+            mv.visitMethodInsn(INVOKESTATIC, MATH, "pow", "(DD)D", false);
+        } else if (node instanceof EqNode) {
+            generateComparison(DCMPL, IFEQ);
+        } else if (node instanceof NeNode) {
+            generateComparison(DCMPL, IFNE);
+        } else if (node instanceof LessNode) {
+            generateComparison(DCMPG, IFLT);
+        } else if (node instanceof LessEqNode) {
+            generateComparison(DCMPG, IFLE);
+        } else if (node instanceof GreaterNode) {
+            generateComparison(DCMPL, IFGT);
+        } else if (node instanceof GreaterEqNode) {
+            generateComparison(DCMPL, IFGE);
+        } else {
+            throw new IllegalStateException("Unknown operator node " + node.getClass().getSimpleName());
+        }
+    }
+
+    // DCMPG/DCMPL are picked so that a NaN operand makes the comparison false, as in Java
+    private void generateComparison(int compareOpcode, int jumpOpcode) {
+        Label isTrue = new Label();
+        Label done = new Label();
+        mv.visitInsn(compareOpcode);
+        mv.visitJumpInsn(jumpOpcode, isTrue);
+        mv.visitInsn(DCONST_0);
+        mv.visitJumpInsn(GOTO, done);
+        mv.visitLabel(isTrue);
+        mv.visitInsn(DCONST_1);
+        mv.visitLabel(done);
+    }
+
+    private void generateBuiltin(BuiltinCall call) {
+        generateExpression(call.param);
+        if (call instanceof RoundCall) {
+            mv.visitMethodInsn(INVOKESTATIC, MATH, "round", "(D)J", false);
+            mv.visitInsn(L2D);
+            return;
+        }
+        String method;
+        if (call instanceof AbsCall) {
+            method = "abs";
+        } else if (call instanceof SqrCall) {
+            method = "sqrt";
+        } else if (call instanceof ExpCall) {
+            method = "exp";
+        } else if (call instanceof SinCall) {
+            method = "sin";
+        } else if (call instanceof CosCall) {
+            method = "cos";
+        } else if (call instanceof SgnCall) {
+            method = "signum";
+        } else if (call instanceof CeilCall) {
+            method = "ceil";
+        } else {
+            throw new IllegalStateException("Unknown builtin node " + call.getClass().getSimpleName());
+        }
+        mv.visitMethodInsn(INVOKESTATIC, MATH, method, "(D)D", false);
+    }
+
+    // statement index of a jump, or -1 if the jump has to go through GotoStatement.run
+    private int jumpTarget(GotoStatement statement) {
+        int target = statement.target;
+        return target >= 0 && target <= program.length ? target : -1;
+    }
+
+    private void collectLoops(Statement statement) {
+        if (statement instanceof ForStatement) {
+            ForStatement forStatement = (ForStatement) statement;
+            loops.put(forStatement.loopId, forStatement);
+            loopCount = Math.max(loopCount, forStatement.loopId + 1);
+        } else if (statement instanceof NextStatement) {
+            loopCount = Math.max(loopCount, ((NextStatement) statement).loopId + 1);
+        } else if (statement instanceof IfStatement) {
+            collectLoops(((IfStatement) statement).thenStatement);
+        }
+    }
+
+    private int firstLoopLocal() {
+        return FIRST_VAR_LOCAL + 2 * varCount;
+    }
+
+    private int limitLocal(int loopId) {
+        return firstLoopLocal() + 4 * loopId;
+    }
+
+    private int stepLocal(int loopId) {
+        return limitLocal(loopId) + 2;
+    }
+
+    private int varLocal(int slot) {
+        return FIRST_VAR_LOCAL + 2 * slot;
+    }
+
+    private void spillVars() {
+        for (int slot = 0; slot < varCount; slot++) {
+            mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+            mv.visitFieldInsn(GETFIELD, CONTEXT, "vars", "[D");
+            pushInt(slot);
+            mv.visitVarInsn(DLOAD, varLocal(slot));
+            mv.visitInsn(DASTORE);
+        }
+    }
+
+    private void reloadVars() {
+        for (int slot = 0; slot < varCount; slot++) {
+            mv.visitVarInsn(ALOAD, CONTEXT_LOCAL);
+            mv.visitFieldInsn(GETFIELD, CONTEXT, "vars", "[D");
+            pushInt(slot);
+            mv.visitInsn(DALOAD);
+            mv.visitVarInsn(DSTORE, varLocal(slot));
+        }
+    }
+
+    private void pushNode(Object node, Class<?> type) {
+        Integer nodeIndex = nodeIndexes.get(node);
+        if (nodeIndex == null) {
+            nodeIndex = nodes.size();
+            nodes.add(node);
+            nodeIndexes.put(node, nodeIndex);
+        }
+        mv.visitVarInsn(ALOAD, THIS);
+        mv.visitFieldInsn(GETFIELD, CLASS_NAME, "nodes", "[Ljava/lang/Object;");
+        pushInt(nodeIndex);
+        mv.visitInsn(AALOAD);
+        mv.visitTypeInsn(CHECKCAST, Type.getInternalName(type));
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+// A program translated to JVM bytecode by BytecodeCompiler, or to VmProgram instructions by VmCompiler
+interface CompiledProgram {
+    void run(JBasicContext context);
+}
@@ -0,0 +1,16 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+// Where the contents of a framebuffer are shown or stored
+interface Display {
+    // called when the framebuffer is flushed, including at program end
+    void present(FrameBuffer frameBuffer);
+
+    // called every frameInterval PLOTs, if the framebuffer has an interval
+    default void frame(FrameBuffer frameBuffer) {
+    }
+}
@@ -0,0 +1,25 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ Execution engines for a parsed program.
+
+ INTERPRETER walks the statement list, COMPILER translates the whole
+ program into a single JVM method loaded as a hidden class. Programs the
+ compiler cannot handle fall back to the interpreter. VM lowers the
+ program to a flat instruction stream for a register machine, which
+ needs no class loading and works for programs of any size. TIERED
+ starts on the interpreter and moves to the compiler (or the VM, for
+ programs the compiler cannot handle) once a loop gets hot, see
+ TierMetrics.
+ */
+public enum Engine {
+    INTERPRETER,
+    COMPILER,
+    VM,
+    TIERED
+}
@@ -0,0 +1,89 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ Off-screen 320x200 framebuffer behind SCREEN 13.
+
+ PLOT is a single store into the int[] backing the image. PLOT colors are
+ grey levels from 0 (black) to 8 (white), looked up in a 256 entry palette.
+ Writes outside the screen are ignored. The display is only involved
+ when flush() is called or, with a frame interval, every frameInterval
+ PLOTs; a window additionally repaints on its own timer.
+
+ PLOT may be called from several threads at once by PARALLEL FOR: a pixel
+ is a single int store, the PLOT counter is atomic and frames are written
+ one at a time.
+ */
+final class FrameBuffer {
+    static final int WIDTH = 320;
+    static final int HEIGHT = 200;
+    private static final int[] PALETTE = new int[256];
+
+    static {
+        for (int i = 0; i < PALETTE.length; i++) {
+            PALETTE[i] = (i << 16) | (i << 8) | i;
+        }
+    }
+
+    final BufferedImage image;
+    final int[] pixels;
+    private final int frameInterval;
+    private final AtomicLong plots = new AtomicLong();
+    Display display;
+
+    FrameBuffer() {
+        this(0);
+    }
+
+    FrameBuffer(int frameInterval) {
+        this.image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.frameInterval = frameInterval;
+    }
+
+    // creates the framebuffer for SCREEN 13 with the display selected in the options
+    static FrameBuffer open(JBasicOptions options) {
+        FrameBuffer frameBuffer = new FrameBuffer(options.frameInterval);
+        if (options.headless) {
+            frameBuffer.display = new HeadlessDisplay(options.screenOutput, options.screenFormat);
+        } else {
+            frameBuffer.display = new WindowDisplay(frameBuffer);
+        }
+        return frameBuffer;
+    }
+
+    void plot(int x, int y, double color) {
+        if (x >= 0 && x < WIDTH && y >= 0 && y < HEIGHT) {
+            pixels[y * WIDTH + x] = colorOf(color);
+        }
+        if (frameInterval != 0 && plots.incrementAndGet() % frameInterval == 0) {
+            frame();
+        }
+    }
+
+    private synchronized void frame() {
+        if (display != null) {
+            display.frame(this);
+        }
+    }
+
+    static int colorOf(double color) {
+        int shade = (int) (color / 8.0 * 255 + 0.5);
+        return PALETTE[Math.max(0, Math.min(255, shade))];
+    }
+
+    // presents the current contents immediately
+    synchronized void flush() {
+        if (display != null) {
+            display.present(this);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.util.Arrays;
+
+/*
+ Fuses runs of straight-line statements into blocks for the interpreter.
+
+ A run is two or more consecutive statements that never change the
+ counter (LET, PRINT, PLOT, ...) where only the first one is a jump
+ target. The first statement of the run is replaced by a block that runs
+ them all and moves the counter past the run, so the interpreter loop
+ dispatches once per run instead of once per statement. The other
+ statements keep their places, so every statement index, and with it
+ the line of every statement for errors and the profiler, stays valid.
+ A plain GOTO after a run, like line 160 of mandelbrot.bas, is folded in
+ as well: the block moves the counter to the target of the GOTO, so even
+ a single statement before a GOTO is worth a block.
+
+ Runs of LET only become a LetBlock, which writes the variables itself
+ instead of calling every LetStatement.
+ */
+final class Fuser {
+    private Fuser() {
+    }
+
+    // a copy of the program with blocks at the start of every run, the input is not modified
+    static Statement[] fuse(Statement[] program) {
+        Statement[] fused = program.clone();
+        boolean[] targets = Optimizer.jumpTargets(program);
+        int i = 0;
+        while (i < program.length) {
+            int end = i;
+            while (end < program.length && Optimizer.isStraightLine(program[end]) && (end == i || !targets[end])) {
+                end++;
+            }
+            // a GOTO right after the run is taken by the block itself
+            boolean jump = end > i && end < program.length && program[end].getClass() == GotoStatement.class;
+            if (end - i >= 2 || jump) {
+                fused[i] = block(Arrays.copyOfRange(program, i, end),
+                        jump ? ((GotoStatement) program[end]).target : end);
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return fused;
+    }
+
+    private static Statement block(Statement[] statements, int next) {
+        for (Statement statement : statements) {
+            if (!(statement instanceof LetStatement)) {
+                return new BlockStatement(statements, next);
+            }
+        }
+        int[] slots = new int[statements.length];
+        BasicExpression[] expressions = new BasicExpression[statements.length];
+        for (int i = 0; i < statements.length; i++) {
+            slots[i] = ((LetStatement) statements[i]).slot;
+            expressions[i] = ((LetStatement) statements[i]).expr;
+        }
+        return new LetBlock(slots, expressions, next);
+    }
+}
+
+// consecutive statements run by one dispatch of the interpreter loop
+final class BlockStatement extends Statement {
+    final Statement[] statements;
+    // index of the statement after the block
+    final int next;
+
+    BlockStatement(Statement[] statements, int next) {
+        this.statements = statements;
+        this.next = next;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        for (Statement statement : statements) {
+            statement.run(context);
+        }
+        context.counter = next;
+    }
+}
+
+final class LetBlock extends Statement {
+    final int[] slots;
+    final BasicExpression[] expressions;
+    final int next;
+
+    LetBlock(int[] slots, BasicExpression[] expressions, int next) {
+        this.slots = slots;
+        this.expressions = expressions;
+        this.next = next;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        double[] vars = context.vars;
+        for (int i = 0; i < slots.length; i++) {
+            vars[slots[i]] = expressions[i].evalDouble(context);
+        }
+        context.counter = next;
+    }
+}
@@ -0,0 +1,98 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ Writes framebuffer contents to files instead of a window.
+
+ With PNG, the final frame goes to the output path and intermediate
+ frames to numbered files next to it (mandelbrot.png, mandelbrot-0001.png,
+ ...). With RAW, every frame including the final one is appended to the
+ output path. Without an output path the frames stay in memory only.
+ */
+final class HeadlessDisplay implements Display {
+    private final Path output;
+    private final ScreenFormat format;
+    private byte[] rgb;
+    private int frameCount;
+    private boolean rawStarted;
+
+    HeadlessDisplay(Path output, ScreenFormat format) {
+        this.output = output;
+        this.format = format;
+    }
+
+    @Override
+    public void present(FrameBuffer frameBuffer) {
+        if (output != null) {
+            write(frameBuffer, output);
+        }
+    }
+
+    @Override
+    public void frame(FrameBuffer frameBuffer) {
+        frameCount++;
+        if (output == null) {
+            return;
+        }
+        if (format == ScreenFormat.PNG) {
+            write(frameBuffer, numbered(output, frameCount));
+        } else {
+            write(frameBuffer, output);
+        }
+    }
+
+    private void write(FrameBuffer frameBuffer, Path path) {
+        try {
+            if (format == ScreenFormat.PNG) {
+                ImageIO.write(frameBuffer.image, "png", path.toFile());
+            } else {
+                appendRaw(frameBuffer, path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Unable to write frame to %s", path), e);
+        }
+    }
+
+    private void appendRaw(FrameBuffer frameBuffer, Path path) throws IOException {
+        int[] pixels = frameBuffer.pixels;
+        if (rgb == null) {
+            rgb = new byte[pixels.length * 3];
+        }
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            int pixel = pixels[i];
+            rgb[j] = (byte) (pixel >> 16);
+            rgb[j + 1] = (byte) (pixel >> 8);
+            rgb[j + 2] = (byte) pixel;
+        }
+        // the first frame of a run replaces what an earlier run left in the file
+        StandardOpenOption mode = rawStarted ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+            out.write(rgb);
+        }
+        rawStarted = true;
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    static Path numbered(Path output, int frame) {
+        String name = output.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return output.resolveSibling(String.format("%s-%04d%s", base, frame, extension));
+    }
+}
@@ -5,12 +5,19 @@
  */
 package org.feyvi.serkan.jbasic;
 
-import javax.swing.*;
-import java.awt.*;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.List;
 import java.util.*;
 
@@ -21,31 +28,113 @@ import java.util.*;
  http://bitsavers.trailing-edge.com/pdf/dartmouth/BASIC_Oct64.pdf
 
   Reference:
-  Every statement needs to be on one line only. Spacing is essential for arithmetic operators.
+  Every statement needs to be on one line only.
 
-  Arithmetic expressions are evaluated left-to-right, unless overridden by parenthesis.
-  This is simpler but erroneous mathematically. So 2+4*2 is 12, not 10.
+  Operators follow the usual precedence: ^ (right associative), unary minus, * and /,
+  + and -, then the comparisons = <> < <= > >=. So 2+4*2 is 10.
 
-  There is no AND, OR boolean operators, yet.
+  AND, OR and NOT combine conditions and bind weaker than the comparisons, in that order.
+  The right operand of AND and OR is only evaluated when needed.
 
   Line numbers or explicit labels can be used. No need to increment line numbers but they need to be
   unique or otherwise last one overrides the previous line numbers.
 
   SCREEN and PLOT statements are available for graphics programming.
   Only mode 13 (320x200) is available.
+
+  FOR I = a TO b [STEP s] evaluates its limit and step once and skips the body if a is already
+  past b, as in Dartmouth BASIC.
+
+  PARALLEL FOR runs independent iterations on several threads, see ParallelForStatement.
+
+  DIM A(n) and DIM A(n, m) declare arrays with indexes from 0 to n (and m).
+  An array has to be declared by a DIM above its first use.
+
+  MAT A = B, B + C, B - C, (K) * B, B * C, TRN(B), ZER or CON works on whole arrays, see MatStatement.
+
+  GOSUB label jumps to a subroutine and RETURN continues after the GOSUB. Subroutines can nest
+  up to JBasicOptions.gosubDepth() levels.
  */
 
 class JBasicContext {
-    Canvas canvas;
+    FrameBuffer screen;
     int counter;
-    Map<String, BasicValue> vars;
-    Map<String, Integer> labels;
-    PrintStream out;
-
-    JBasicContext(Map<String, Integer> labels) {
+    // variable values, indexed by the slots assigned in the symbol table at parse time
+    double[] vars;
+    // limit and step of every FOR loop, evaluated once when the loop is entered, indexed by loop id
+    double[] loopLimits;
+    double[] loopSteps;
+    // DIM arrays by array slot, null until their DIM statement runs
+    BasicArray[] arrays;
+    SymbolTable symbols;
+    JBasicOptions options;
+    OutputSink out;
+    // set when profiling, see JBasicOptions.profile()
+    Profiler profiler;
+    // set when the program runs compiled, PARALLEL FOR workers run their bodies with it
+    CompiledProgram compiled;
+    // set by JBasicScheduler, limits the run
+    RunGuard guard;
+    // statement indexes to continue at after RETURN, the innermost GOSUB last
+    int[] returns = new int[16];
+    int returnDepth;
+
+    JBasicContext(SymbolTable symbols, int arrayCount, int loopCount) {
         this.counter = 0;
-        this.labels = labels;
-        this.vars = new HashMap<>();
+        this.symbols = symbols;
+        this.vars = new double[symbols.size()];
+        this.arrays = new BasicArray[arrayCount];
+        this.loopLimits = new double[loopCount];
+        this.loopSteps = new double[loopCount];
+    }
+
+    // a copy for a PARALLEL FOR worker: own variables and loop state, shared screen and array contents
+    JBasicContext fork(OutputSink out) {
+        JBasicContext copy = new JBasicContext(symbols, 0, 0);
+        copy.vars = vars.clone();
+        copy.arrays = arrays.clone();
+        copy.loopLimits = loopLimits.clone();
+        copy.loopSteps = loopSteps.clone();
+        copy.screen = screen;
+        copy.options = options;
+        copy.compiled = compiled;
+        copy.guard = guard;
+        copy.out = out;
+        return copy;
+    }
+
+    void pushReturn(int index, int line) {
+        if (returnDepth >= options.gosubDepth) {
+            throw new BasicRuntimeException(line,
+                    String.format("GOSUB nested deeper than %d levels", options.gosubDepth));
+        }
+        if (returnDepth == returns.length) {
+            returns = Arrays.copyOf(returns, 2 * returns.length);
+        }
+        returns[returnDepth++] = index;
+    }
+
+    int popReturn(int line) {
+        if (returnDepth == 0) {
+            throw new BasicRuntimeException(line, "RETURN without GOSUB");
+        }
+        return returns[--returnDepth];
+    }
+
+    double getVariable(String name) {
+        return vars[slotOf(name)];
+    }
+
+    void setVariable(String name, double value) {
+        vars[slotOf(name)] = value;
+    }
+
+    private int slotOf(String name) {
+        int slot = symbols.slotOf(name);
+        if (slot < 0) {
+            throw new IllegalArgumentException(String.format("Unknown variable %s", name));
+        }
+        return slot;
     }
 }
 
@@ -57,236 +146,938 @@ class Statement {
 
 // Expression is like statement, but has a value
 class BasicExpression extends Statement {
-    private BasicValue value;
+    double value;
 
     BasicExpression() {
     }
 
-    BasicExpression(BasicValue value) {
+    BasicExpression(double value) {
         this.value = value;
     }
 
-    BasicValue getValue(JBasicContext context) {
+    // primitive evaluation, used by statements on hot paths as it allocates nothing
+    double evalDouble(JBasicContext context) {
         return this.value;
     }
+
+    // the expression as the condition of IF: true only if the value is 1. Comparisons, AND, OR and NOT
+    // answer without going through a 1.0/0.0 value.
+    boolean test(JBasicContext context) {
+        return evalDouble(context) == 1.0;
+    }
 }
 
 class VariableExpression extends BasicExpression {
-    private String varName;
+    final int slot;
 
-    VariableExpression(String varName) {
-        this.varName = varName;
+    VariableExpression(int slot) {
+        this.slot = slot;
     }
 
     @Override
-    public BasicValue getValue(JBasicContext context) {
-        return context.vars.get(this.varName);
+    double evalDouble(JBasicContext context) {
+        return context.vars[this.slot];
     }
 }
 
-class ArithmeticExpression extends BasicExpression {
-    private final BasicExpression leftExpr;
-    private final BasicExpression rightExpr;
-    private final String operator;
+// an element of a DIM array, A(I) or A(I, J)
+class ArrayExpression extends BasicExpression {
+    final String name;
+    final int slot;
+    final BasicExpression row;
+    // null for a one-dimensional array
+    final BasicExpression column;
+    // source line, for runtime errors
+    final int line;
+
+    ArrayExpression(String name, int slot, BasicExpression row, BasicExpression column, int line) {
+        this.name = name;
+        this.slot = slot;
+        this.row = row;
+        this.column = column;
+        this.line = line;
+    }
 
-    ArithmeticExpression(BasicExpression leftExpr, String operator, BasicExpression rightExpr) {
-        this.leftExpr = leftExpr;
-        this.rightExpr = rightExpr;
-        this.operator = operator;
+    ArrayExpression with(BasicExpression row, BasicExpression column) {
+        return new ArrayExpression(name, slot, row, column, line);
     }
 
     @Override
-    BasicValue getValue(JBasicContext context) {
-        Double leftVal = leftExpr.getValue(context).dblValue;
-        Double rightVal = rightExpr.getValue(context).dblValue;
-        if (operator.equalsIgnoreCase("+")) {
-            return new BasicValue(leftVal + rightVal);
-        } else if (operator.equalsIgnoreCase("-")) {
-            return new BasicValue(leftVal - rightVal);
-        } else if (operator.equalsIgnoreCase("*")) {
-            return new BasicValue(leftVal * rightVal);
-        } else if (operator.equalsIgnoreCase("/")) {
-            return new BasicValue(leftVal / rightVal);
-        } else if (operator.equalsIgnoreCase("^")) {
-            return new BasicValue(Math.pow(leftVal, rightVal));
-        } else if (operator.equalsIgnoreCase("=")) {
-            return new BasicValue(leftVal.equals(rightVal) ? 1.0 : 0.0);
-        } else if (operator.equalsIgnoreCase("<")) {
-            return new BasicValue(leftVal < rightVal ? 1.0 : 0.0);
-        } else if (operator.equalsIgnoreCase("<=")) {
-            return new BasicValue(leftVal <= rightVal ? 1.0 : 0.0);
-        } else if (operator.equalsIgnoreCase(">")) {
-            return new BasicValue(leftVal > rightVal ? 1.0 : 0.0);
-        } else if (operator.equalsIgnoreCase(">=")) {
-            return new BasicValue(leftVal >= rightVal ? 1.0 : 0.0);
+    double evalDouble(JBasicContext context) {
+        BasicArray array = BasicArray.of(context, slot, name, line);
+        return array.get(row.evalDouble(context), column == null ? 0.0 : column.evalDouble(context), line);
+    }
+}
+
+// Binary operators get one node class each, resolved once by the parser
+abstract class BinaryNode extends BasicExpression {
+    final BasicExpression left;
+    final BasicExpression right;
+
+    BinaryNode(BasicExpression left, BasicExpression right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    // the same operator applied to other operands
+    abstract BinaryNode with(BasicExpression left, BasicExpression right);
+
+    static BinaryNode create(String operator, BasicExpression left, BasicExpression right) {
+        switch (operator) {
+            case "+":
+                return new AddNode(left, right);
+            case "-":
+                return new SubNode(left, right);
+            case "*":
+                return new MulNode(left, right);
+            case "/":
+                return new DivNode(left, right);
+            case "^":
+                return new PowNode(left, right);
+            case "=":
+                return new EqNode(left, right);
+            case "<>":
+                return new NeNode(left, right);
+            case "<":
+                return new LessNode(left, right);
+            case "<=":
+                return new LessEqNode(left, right);
+            case ">":
+                return new GreaterNode(left, right);
+            case ">=":
+                return new GreaterEqNode(left, right);
+            case "AND":
+                return new AndNode(left, right);
+            case "OR":
+                return new OrNode(left, right);
+            default:
+                return null;
         }
-        return null;
     }
 }
 
-class CallExpression extends BasicExpression {
+final class AddNode extends BinaryNode {
+    AddNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new AddNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return left.evalDouble(context) + right.evalDouble(context);
+    }
+}
+
+final class SubNode extends BinaryNode {
+    SubNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new SubNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return left.evalDouble(context) - right.evalDouble(context);
+    }
+}
+
+final class MulNode extends BinaryNode {
+    MulNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new MulNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return left.evalDouble(context) * right.evalDouble(context);
+    }
+}
+
+final class DivNode extends BinaryNode {
+    DivNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new DivNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return left.evalDouble(context) / right.evalDouble(context);
+    }
+}
+
+final class PowNode extends BinaryNode {
+    PowNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new PowNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return Math.pow(left.evalDouble(context), right.evalDouble(context));
+    }
+}
+
+final class EqNode extends BinaryNode {
+    EqNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new EqNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return test(context) ? 1.0 : 0.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return left.evalDouble(context) == right.evalDouble(context);
+    }
+}
+
+final class NeNode extends BinaryNode {
+    NeNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new NeNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return test(context) ? 1.0 : 0.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return left.evalDouble(context) != right.evalDouble(context);
+    }
+}
+
+final class LessNode extends BinaryNode {
+    LessNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new LessNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return test(context) ? 1.0 : 0.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return left.evalDouble(context) < right.evalDouble(context);
+    }
+}
+
+final class LessEqNode extends BinaryNode {
+    LessEqNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new LessEqNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return test(context) ? 1.0 : 0.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return left.evalDouble(context) <= right.evalDouble(context);
+    }
+}
+
+final class GreaterNode extends BinaryNode {
+    GreaterNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new GreaterNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return test(context) ? 1.0 : 0.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return left.evalDouble(context) > right.evalDouble(context);
+    }
+}
+
+final class GreaterEqNode extends BinaryNode {
+    GreaterEqNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new GreaterEqNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return test(context) ? 1.0 : 0.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return left.evalDouble(context) >= right.evalDouble(context);
+    }
+}
+
+// AND and OR only evaluate their right operand if the left one does not decide the result
+final class AndNode extends BinaryNode {
+    AndNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new AndNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return test(context) ? 1.0 : 0.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return left.test(context) && right.test(context);
+    }
+}
+
+final class OrNode extends BinaryNode {
+    OrNode(BasicExpression left, BasicExpression right) {
+        super(left, right);
+    }
+
+    @Override
+    BinaryNode with(BasicExpression left, BasicExpression right) {
+        return new OrNode(left, right);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return test(context) ? 1.0 : 0.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return left.test(context) || right.test(context);
+    }
+}
+
+final class NotNode extends BasicExpression {
+    final BasicExpression operand;
+
+    NotNode(BasicExpression operand) {
+        this.operand = operand;
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return operand.test(context) ? 0.0 : 1.0;
+    }
+
+    @Override
+    boolean test(JBasicContext context) {
+        return !operand.test(context);
+    }
+}
 
-    private final String funcName;
-    private final BasicExpression params;
+final class NegNode extends BasicExpression {
+    final BasicExpression operand;
 
-    CallExpression(String funcName, BasicExpression params) {
-        this.funcName = funcName;
-        this.params = params;
+    NegNode(BasicExpression operand) {
+        this.operand = operand;
     }
 
     @Override
-    BasicValue getValue(JBasicContext context) {
-        BasicValue val = null;
-        if (funcName.equalsIgnoreCase("ABS")) {
-            val = new BasicValue(Math.abs(params.getValue(context).dblValue));
-        } else if (funcName.equalsIgnoreCase("SQR")) {
-            val = new BasicValue(Math.sqrt(params.getValue(context).dblValue));
-        } else if (funcName.equalsIgnoreCase("EXP")) {
-            val = new BasicValue(Math.exp(params.getValue(context).dblValue));
-        } else if (funcName.equalsIgnoreCase("SIN")) {
-            val = new BasicValue(Math.sin(params.getValue(context).dblValue));
-        } else if (funcName.equalsIgnoreCase("COS")) {
-            val = new BasicValue(Math.cos(params.getValue(context).dblValue));
-        } else if (funcName.equalsIgnoreCase("ROUND")) {
-            val = new BasicValue((double) Math.round(params.getValue(context).dblValue));
-        } else if (funcName.equalsIgnoreCase("SGN")) {
-            val = new BasicValue(Math.signum(params.getValue(context).dblValue));
-        } else if (funcName.equalsIgnoreCase("CEIL")) {
-            val = new BasicValue(Math.ceil(params.getValue(context).dblValue));
+    double evalDouble(JBasicContext context) {
+        return -operand.evalDouble(context);
+    }
+}
+
+// Builtin functions, one node class per function
+abstract class BuiltinCall extends BasicExpression {
+    final BasicExpression param;
+
+    BuiltinCall(BasicExpression param) {
+        this.param = param;
+    }
+
+    // the same function applied to another parameter
+    abstract BuiltinCall with(BasicExpression param);
+
+    static BuiltinCall create(String funcName, BasicExpression param) {
+        switch (funcName.toUpperCase(Locale.ROOT)) {
+            case "ABS":
+                return new AbsCall(param);
+            case "SQR":
+                return new SqrCall(param);
+            case "EXP":
+                return new ExpCall(param);
+            case "SIN":
+                return new SinCall(param);
+            case "COS":
+                return new CosCall(param);
+            case "ROUND":
+                return new RoundCall(param);
+            case "SGN":
+                return new SgnCall(param);
+            case "CEIL":
+                return new CeilCall(param);
+            default:
+                return null;
         }
-        return val;
     }
 }
 
-class BasicValue {
+final class AbsCall extends BuiltinCall {
+    AbsCall(BasicExpression param) {
+        super(param);
+    }
+
+    @Override
+    BuiltinCall with(BasicExpression param) {
+        return new AbsCall(param);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return Math.abs(param.evalDouble(context));
+    }
+}
+
+final class SqrCall extends BuiltinCall {
+    SqrCall(BasicExpression param) {
+        super(param);
+    }
+
+    @Override
+    BuiltinCall with(BasicExpression param) {
+        return new SqrCall(param);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return Math.sqrt(param.evalDouble(context));
+    }
+}
+
+final class ExpCall extends BuiltinCall {
+    ExpCall(BasicExpression param) {
+        super(param);
+    }
+
+    @Override
+    BuiltinCall with(BasicExpression param) {
+        return new ExpCall(param);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return Math.exp(param.evalDouble(context));
+    }
+}
+
+final class SinCall extends BuiltinCall {
+    SinCall(BasicExpression param) {
+        super(param);
+    }
+
+    @Override
+    BuiltinCall with(BasicExpression param) {
+        return new SinCall(param);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return Math.sin(param.evalDouble(context));
+    }
+}
+
+final class CosCall extends BuiltinCall {
+    CosCall(BasicExpression param) {
+        super(param);
+    }
+
+    @Override
+    BuiltinCall with(BasicExpression param) {
+        return new CosCall(param);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return Math.cos(param.evalDouble(context));
+    }
+}
+
+final class RoundCall extends BuiltinCall {
+    RoundCall(BasicExpression param) {
+        super(param);
+    }
+
+    @Override
+    BuiltinCall with(BasicExpression param) {
+        return new RoundCall(param);
+    }
+
+    @Override
+    double evalDouble(JBasicContext context) {
+        return (double) Math.round(param.evalDouble(context));
+    }
+}
+
+final class SgnCall extends BuiltinCall {
+    SgnCall(BasicExpression param) {
+        super(param);
+    }
 
-    BasicValue() {
+    @Override
+    BuiltinCall with(BasicExpression param) {
+        return new SgnCall(param);
     }
 
-    BasicValue(Double dblValue) {
-        this.dblValue = dblValue;
+    @Override
+    double evalDouble(JBasicContext context) {
+        return Math.signum(param.evalDouble(context));
     }
+}
 
-    BasicValue(BasicValue value) {
-        this.dblValue = value.dblValue;
+final class CeilCall extends BuiltinCall {
+    CeilCall(BasicExpression param) {
+        super(param);
     }
 
-    Double dblValue;
+    @Override
+    BuiltinCall with(BasicExpression param) {
+        return new CeilCall(param);
+    }
 
     @Override
-    public String toString() {
-        return dblValue.toString();
+    double evalDouble(JBasicContext context) {
+        return Math.ceil(param.evalDouble(context));
     }
 }
 
 class LetStatement extends Statement {
-    private String variable;
-    private BasicExpression expr;
+    final int slot;
+    final BasicExpression expr;
+
+    LetStatement(int slot, BasicExpression expr) {
+        this.slot = slot;
+        this.expr = expr;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        context.vars[slot] = expr.evalDouble(context);
+    }
+}
+
+class ArrayLetStatement extends Statement {
+    final ArrayExpression element;
+    final BasicExpression expr;
 
-    LetStatement(String varName, BasicExpression expr) {
-        this.variable = varName;
+    ArrayLetStatement(ArrayExpression element, BasicExpression expr) {
+        this.element = element;
         this.expr = expr;
     }
 
     @Override
     public void run(JBasicContext context) {
-        context.vars.put(variable, expr.getValue(context));
+        BasicArray array = BasicArray.of(context, element.slot, element.name, element.line);
+        double row = element.row.evalDouble(context);
+        double column = element.column == null ? 0.0 : element.column.evalDouble(context);
+        array.set(row, column, element.line, expr.evalDouble(context));
+    }
+}
+
+// DIM A(n), B(n, m): allocates zeroed arrays, again on every run of the statement
+class DimStatement extends Statement {
+    final String[] names;
+    final int[] slots;
+    final BasicExpression[] rows;
+    // entries are null for one-dimensional arrays
+    final BasicExpression[] columns;
+    final int line;
+
+    DimStatement(String[] names, int[] slots, BasicExpression[] rows, BasicExpression[] columns, int line) {
+        this.names = names;
+        this.slots = slots;
+        this.rows = rows;
+        this.columns = columns;
+        this.line = line;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        for (int i = 0; i < slots.length; i++) {
+            double rowBound = rows[i].evalDouble(context);
+            double columnBound = columns[i] == null ? 0.0 : columns[i].evalDouble(context);
+            context.arrays[slots[i]] = BasicArray.create(names[i], rowBound, columnBound, columns[i] != null, line);
+        }
     }
 }
 
 class GotoStatement extends Statement {
-    private String label;
-    private Integer counter;
+    final String label;
+    // statement index, resolved from the label by the link pass
+    int target;
+
+    GotoStatement(int target) {
+        this.label = null;
+        this.target = target;
+    }
+
+    GotoStatement(String label) {
+        this.label = label;
+        this.target = -1;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        context.counter = this.target;
+    }
+}
+
+// a GOTO that remembers where it came from, the label is linked like the one of GOTO
+class GosubStatement extends GotoStatement {
+    // source line, for runtime errors
+    final int line;
+
+    GosubStatement(String label, int line) {
+        super(label);
+        this.line = line;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        context.pushReturn(context.counter, line);
+        context.counter = this.target;
+    }
+}
+
+class ReturnStatement extends Statement {
+    // source line, for runtime errors
+    final int line;
+
+    ReturnStatement(int line) {
+        this.line = line;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        context.counter = context.popReturn(line);
+    }
+}
+
+class PrintStatement extends Statement {
+    final ArrayList<BasicExpression> expressions;
+
+    PrintStatement(ArrayList<BasicExpression> expressions) {
+        this.expressions = expressions;
+    }
+
+    public void run(JBasicContext context) {
+        for (BasicExpression expr : expressions) {
+            context.out.println(expr.evalDouble(context));
+        }
+    }
+}
+
+/*
+ FOR only runs when a loop is entered: it sets the variable, evaluates
+ the limit and step once and skips the body if the loop is already done.
+ The matching NextStatement does the rest of the work, so every further
+ iteration is a single statement that jumps straight to the body.
+ */
+class ForStatement extends Statement {
+    private final String varName;
+    final int slot;
+    final int loopId;
+    final BasicExpression start;
+    final BasicExpression end;
+    // null for the default step of 1
+    final BasicExpression step;
+    int endFor;
+
+    ForStatement(String varName, int slot, int loopId, BasicExpression start, BasicExpression end,
+                 BasicExpression step) {
+        this.varName = varName;
+        this.slot = slot;
+        this.loopId = loopId;
+        this.start = start;
+        this.end = end;
+        this.step = step;
+    }
+
+    void setEndFor(int endFor) {
+        this.endFor = endFor;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        double value = start.evalDouble(context);
+        double limit = end.evalDouble(context);
+        double increment = step == null ? 1.0 : step.evalDouble(context);
+        context.vars[slot] = value;
+        context.loopLimits[loopId] = limit;
+        context.loopSteps[loopId] = increment;
+        if (increment >= 0 ? value > limit : value < limit) {
+            context.counter = this.endFor;
+        }
+    }
 
-    GotoStatement(int counter) {
-        this.counter = counter;
+    String getVarName() {
+        return this.varName;
     }
+}
 
-    GotoStatement(String label) {
-        this.label = label;
+/*
+ PARALLEL FOR runs the whole loop when it is entered: the iterations are
+ split into chunks that run on the common ForkJoinPool, each on a fork of
+ the context with its own variables and a RecordingSink for PRINT. The
+ loop values are computed by repeated addition like NEXT does, so every
+ iteration sees the same value as in a sequential loop. Afterwards the
+ output of the chunks is replayed in order, and the variables are taken
+ from the chunk with the last iteration.
+
+ The parser makes sure the body does not jump out of the loop and does
+ not change the screen. Iterations must not depend on each other; array
+ elements and pixels written by different iterations are fine.
+ */
+class ParallelForStatement extends ForStatement {
+    final int bodyStart;
+    // source line, for runtime errors
+    final int line;
+    // the program this loop is part of, set once parsing is complete
+    Statement[] program;
+
+    ParallelForStatement(String varName, int slot, int loopId, BasicExpression start, BasicExpression end,
+                         BasicExpression step, int bodyStart, int line) {
+        super(varName, slot, loopId, start, end, step);
+        this.bodyStart = bodyStart;
+        this.line = line;
     }
 
     @Override
     public void run(JBasicContext context) {
-        context.counter = counter != null ? this.counter : context.labels.get(this.label);
-    }
-}
+        double value = start.evalDouble(context);
+        double limit = end.evalDouble(context);
+        double increment = step == null ? 1.0 : step.evalDouble(context);
+        context.vars[slot] = value;
+        if (increment >= 0 ? value > limit : value < limit) {
+            context.counter = this.endFor;
+            return;
+        }
+        if (increment == 0 || Double.isNaN(increment)) {
+            throw new BasicRuntimeException(line, "PARALLEL FOR needs a step other than 0");
+        }
+        long count = 1;
+        double last = value + increment;
+        while (increment >= 0 ? last <= limit : last >= limit) {
+            count++;
+            last += increment;
+        }
 
-class PrintStatement extends Statement {
-    private ArrayList<BasicExpression> expressions;
+        int chunks = (int) Math.min(count, 4L * ForkJoinPool.getCommonPoolParallelism());
+        long chunkSize = (count + chunks - 1) / chunks;
+        chunks = (int) ((count + chunkSize - 1) / chunkSize);
+        Chunk[] work = new Chunk[chunks];
+        double next = value;
+        for (int i = 0; i < chunks; i++) {
+            long iterations = Math.min(chunkSize, count - i * chunkSize);
+            work[i] = new Chunk(context.fork(new RecordingSink()), next, increment, iterations);
+            for (long k = 0; k < iterations; k++) {
+                next += increment;
+            }
+        }
+        ForkJoinTask.invokeAll(work);
 
-    PrintStatement(ArrayList<BasicExpression> expressions) {
-        this.expressions = expressions;
+        for (Chunk chunk : work) {
+            chunk.out.replay(context.out);
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+        }
+        JBasicContext lastChunk = work[chunks - 1].context;
+        System.arraycopy(lastChunk.vars, 0, context.vars, 0, context.vars.length);
+        context.vars[slot] = last;
+        context.counter = this.endFor;
     }
 
-    public void run(JBasicContext context) {
-        for (BasicExpression expr : expressions) {
-            context.out.println(expr.getValue(context));
+    // runs the body once, up to the NEXT of this loop
+    private void runBody(JBasicContext context) {
+        int next = endFor - 1;
+        context.counter = bodyStart;
+        if (context.compiled != null) {
+            // the compiled program returns when it reaches the NEXT of a parallel loop
+            context.compiled.run(context);
+            return;
+        }
+        Statement[] program = this.program;
+        RunGuard guard = context.guard;
+        long executed = 0;
+        while (context.counter != next && context.counter < program.length) {
+            // workers only stop on cancellation and timeout, the budget is counted by the main loop
+            if (guard != null && (++executed & (RunGuard.CHECK_INTERVAL - 1)) == 0) {
+                guard.checkStopped();
+            }
+            Statement currentStatement = program[context.counter];
+            context.counter++;
+            currentStatement.run(context);
         }
     }
-}
 
-class ForStatement extends Statement {
-    private final String varName;
-    private final BasicExpression start;
-    private final BasicExpression end;
-    private BasicValue counterVar;
-    private int endFor;
+    private final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final JBasicContext context;
+        final RecordingSink out;
+        final double first;
+        final double increment;
+        final long iterations;
+        RuntimeException error;
+
+        Chunk(JBasicContext context, double first, double increment, long iterations) {
+            this.context = context;
+            this.out = (RecordingSink) context.out;
+            this.first = first;
+            this.increment = increment;
+            this.iterations = iterations;
+        }
 
-    ForStatement(String varName, BasicExpression start, BasicExpression end) {
-        this.varName = varName;
-        this.start = start;
-        this.end = end;
-        this.counterVar = null;
+        @Override
+        protected void compute() {
+            double value = first;
+            try {
+                for (long i = 0; i < iterations; i++) {
+                    context.vars[slot] = value;
+                    runBody(context);
+                    value += increment;
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
     }
+}
 
-    void setEndFor(int endFor) {
-        this.endFor = endFor;
+// adds the step and jumps back to the first statement of the body until the limit is passed
+class NextStatement extends Statement {
+    final int slot;
+    final int loopId;
+    final int bodyStart;
+
+    NextStatement(int slot, int loopId, int bodyStart) {
+        this.slot = slot;
+        this.loopId = loopId;
+        this.bodyStart = bodyStart;
     }
 
     @Override
     public void run(JBasicContext context) {
-        if (this.counterVar == null) {
-            this.counterVar = new BasicValue(start.getValue(context));
-            context.vars.put(varName, counterVar);
-        } else {
-            this.counterVar.dblValue++;
-            if (this.counterVar.dblValue > end.getValue(context).dblValue) {
-                context.counter = this.endFor;
-                resetCounter(context);
-            }
+        double increment = context.loopSteps[loopId];
+        double value = context.vars[slot] + increment;
+        context.vars[slot] = value;
+        if (increment >= 0 ? value <= context.loopLimits[loopId] : value >= context.loopLimits[loopId]) {
+            context.counter = bodyStart;
         }
     }
+}
 
-    private void resetCounter(JBasicContext context) {
-        context.vars.remove(varName);
-        this.counterVar = null;
-    }
+// a NEXT parsed on its own by JBasicRepl, replaced by a NextStatement when the lines are linked
+final class UnpairedNext extends Statement {
+    final String varName;
 
-    String getVarName() {
-        return this.varName;
+    UnpairedNext(String varName) {
+        this.varName = varName;
     }
 }
 
 class IfStatement extends Statement {
-    private final BasicExpression condition;
-    private final Statement thenStatement;
+    final BasicExpression condition;
+    final Statement thenStatement;
 
     IfStatement(BasicExpression condition, Statement thenStatement) {
         this.condition = condition;
         this.thenStatement = thenStatement;
     }
 
+    // IF ... THEN GOTO becomes a single conditional jump
+    static IfStatement create(BasicExpression condition, Statement thenStatement) {
+        if (thenStatement.getClass() == GotoStatement.class) {
+            return new IfGotoStatement(condition, (GotoStatement) thenStatement);
+        }
+        return new IfStatement(condition, thenStatement);
+    }
+
     @Override
     public void run(JBasicContext context) {
-        if (this.condition.getValue(context).dblValue == 1.0) {
+        if (this.condition.test(context)) {
             thenStatement.run(context);
         }
     }
 }
 
+final class IfGotoStatement extends IfStatement {
+    private final GotoStatement jump;
+
+    IfGotoStatement(BasicExpression condition, GotoStatement jump) {
+        super(condition, jump);
+        this.jump = jump;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        if (this.condition.test(context)) {
+            context.counter = jump.target;
+        }
+    }
+}
+
 class ScreenStatement extends Statement {
-    private final BasicExpression mode;
+    final BasicExpression mode;
 
     ScreenStatement(BasicExpression mode) {
         this.mode = mode;
@@ -294,23 +1085,16 @@ class ScreenStatement extends Statement {
 
     @Override
     public void run(JBasicContext context) {
-        if (mode.getValue(context).dblValue == 13.0) {
-            JFrame frame = new JFrame("jBASIC");
-            Canvas canvas = new Canvas();
-            canvas.setSize(640, 400);
-            frame.add(canvas);
-            frame.pack();
-            frame.setVisible(true);
-            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            context.canvas = canvas;
+        if (mode.evalDouble(context) == 13.0) {
+            context.screen = FrameBuffer.open(context.options);
         }
     }
 }
 
 class PlotStatement extends Statement {
-    private final BasicExpression x;
-    private final BasicExpression y;
-    private final BasicExpression c;
+    final BasicExpression x;
+    final BasicExpression y;
+    final BasicExpression c;
 
     PlotStatement(BasicExpression x, BasicExpression y, BasicExpression c) {
         this.x = x;
@@ -320,94 +1104,404 @@ class PlotStatement extends Statement {
 
     @Override
     public void run(JBasicContext context) {
-        Graphics2D g = (Graphics2D) context.canvas.getGraphics();
-        float colorValue = c.getValue(context).dblValue.floatValue();
-        colorValue /= 8.0; // FIXME
-        int xVal = x.getValue(context).dblValue.intValue();
-        int yVal = y.getValue(context).dblValue.intValue();
-        g.setColor(new Color(colorValue, colorValue, colorValue));
-
-        g.fillRect(xVal * 2, yVal * 2, 2, 2);
+        int xVal = (int) x.evalDouble(context);
+        int yVal = (int) y.evalDouble(context);
+        context.screen.plot(xVal, yVal, c.evalDouble(context));
     }
 }
 
 public class JBasic {
 
     private final List<String> source;
-    private String[] tokens;
+    private final JBasicOptions options;
+    private volatile CompiledProgram compiled;
+    private boolean compileFailed;
+    // loop counters of Engine.TIERED, null for the other engines
+    private TierMetrics tiers;
+    // set once a hot loop has started the background compilation
+    private volatile boolean promoting;
+    private Lexer lexer;
     private int currentLine;
-    private int tokenIdx;
+    private int syntaxErrorLine = -1;
     private ArrayList<Statement> statements;
+    private Statement[] program;
+    // the program with straight-line runs fused into blocks, see Fuser
+    private Statement[] interpreted;
     private HashMap<String, Integer> labels;
+    private SymbolTable symbols;
+    private SymbolTable arrays;
+    // number of indexes of every array, by array slot
+    private ArrayList<Integer> arrayDimensions;
     private ArrayList<String> errors;
     private Stack<Integer> forStatements;
+    // source line of every FOR statement, by statement index
+    private HashMap<Integer, Integer> forLines;
+    private int loopCount;
+    private ArrayList<LabelReference> labelReferences;
+    // label and source line of every statement, by statement index, for the profiler
+    private ArrayList<String> statementLabels;
+    private ArrayList<Integer> statementLines;
+    private String[] profileLabels;
+    private String[] profileSources;
+    private int[] profileLines;
+    // true if the program came from the cache of JBasicOptions.cache()
+    boolean loadedFromCache;
+    // set for the line parser of JBasicRepl, which pairs NEXT with FOR in linkLines instead
+    private boolean lineMode;
+
+    // a jump waiting for the link pass to resolve its label
+    private static class LabelReference {
+        final GotoStatement statement;
+        final int line;
+
+        LabelReference(GotoStatement statement, int line) {
+            this.statement = statement;
+            this.line = line;
+        }
+    }
 
     public JBasic(String source) {
-        this.source = Arrays.asList(source.trim().split("\\s*\n\\s*"));
-        setupInterpreter();
-        parse();
+        this(source, new JBasicOptions());
     }
 
     public JBasic(List<String> sourceLines) {
+        this(sourceLines, new JBasicOptions());
+    }
+
+    public JBasic(String source, JBasicOptions options) {
+        this(splitLines(source), options);
+    }
+
+    public JBasic(List<String> sourceLines, JBasicOptions options) {
         this.source = sourceLines;
+        this.options = options;
+        ProgramCodec.Image cached = options.cacheDirectory == null ? null
+                : ProgramCache.load(options.cacheDirectory, sourceLines, options);
+        if (cached != null) {
+            restore(cached);
+            return;
+        }
         setupInterpreter();
         parse();
+        if (options.cacheDirectory != null && errors.isEmpty()) {
+            ProgramCache.store(options.cacheDirectory, sourceLines, options, new ProgramCodec.Image(
+                    symbols.names(), arrays.names(), loopCount, program, profileLabels, profileLines));
+        }
+    }
+
+    // the line parser of JBasicRepl, source gives the text of every line by its number
+    private JBasic(List<String> source, JBasicOptions options, JBasic parser) {
+        this.source = source;
+        this.options = options;
+        setupInterpreter();
+        if (parser == null) {
+            this.lineMode = true;
+            this.lexer = new Lexer();
+        } else {
+            // a program linked from the lines of the parser, sharing its variables and arrays
+            this.symbols = parser.symbols;
+            this.arrays = parser.arrays;
+            this.arrayDimensions = parser.arrayDimensions;
+        }
+    }
+
+    static JBasic lineParser(List<String> source, JBasicOptions options) {
+        return new JBasic(source, options, null);
+    }
+
+    /*
+     Parses one numbered line for JBasicRepl. Variables and arrays are shared
+     by all lines; jumps, NEXT and loop ids are left for linkLines. Returns
+     the statement, its errors are in getErrors() until the next call.
+     */
+    Statement parseLine(int number, String text) {
+        errors.clear();
+        labelReferences.clear();
+        syntaxErrorLine = -1;
+        currentLine = number;
+        lexer.reset(text);
+        // the line number itself
+        lexer.next();
+        Statement statement = parseStatement();
+        if (lexer.type != Lexer.TokenType.END) {
+            syntaxError(String.format("Unexpected %s", lexer.text()));
+        }
+        return statement;
+    }
+
+    /*
+     Links statements parsed by parseLine into a program that can be run,
+     numbers are their line numbers in order. The statements are shared
+     with the caller and only their jump targets change, so a line that
+     is not edited does not have to be parsed again. FOR statements are
+     copied with loop ids numbered from 0 in this program.
+     */
+    JBasic linkLines(int[] numbers, Statement[] lines) {
+        JBasic linked = new JBasic(source, options, this);
+        for (int i = 0; i < lines.length; i++) {
+            linked.currentLine = numbers[i];
+            linked.statements.add(linked.relink(lines[i]));
+            linked.labels.put(String.valueOf(numbers[i]), i);
+            linked.statementLabels.add(String.valueOf(numbers[i]));
+            linked.statementLines.add(numbers[i]);
+        }
+        linked.finish();
+        return linked;
+    }
+
+    // the statement of a parsed line with its FOR/NEXT pairing and label references for this program
+    private Statement relink(Statement statement) {
+        if (statement instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) statement;
+            Statement thenStatement = relink(ifStatement.thenStatement);
+            return thenStatement == ifStatement.thenStatement ? statement
+                    : IfStatement.create(ifStatement.condition, thenStatement);
+        } else if (statement instanceof UnpairedNext) {
+            return pairNext(((UnpairedNext) statement).varName);
+        } else if (statement instanceof GotoStatement) {
+            labelReferences.add(new LabelReference((GotoStatement) statement, currentLine));
+        } else if (statement instanceof ForStatement) {
+            ForStatement forStatement = (ForStatement) statement;
+            int index = statements.size();
+            forStatements.push(index);
+            forLines.put(index, currentLine);
+            if (statement instanceof ParallelForStatement) {
+                // the body starts after this FOR in this program
+                return new ParallelForStatement(forStatement.getVarName(), forStatement.slot, loopCount++,
+                        forStatement.start, forStatement.end, forStatement.step, index + 1,
+                        ((ParallelForStatement) statement).line);
+            }
+            return new ForStatement(forStatement.getVarName(), forStatement.slot, loopCount++,
+                    forStatement.start, forStatement.end, forStatement.step);
+        }
+        return statement;
+    }
+
+    // the non-blank lines of the source, trimmed
+    private static List<String> splitLines(String source) {
+        List<String> lines = new ArrayList<>();
+        int lineStart = 0;
+        while (lineStart <= source.length()) {
+            int lineEnd = source.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = source.length();
+            }
+            String line = source.substring(lineStart, lineEnd).trim();
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return lines;
     }
 
     private void setupInterpreter() {
         this.errors = new ArrayList<>();
         this.statements = new ArrayList<>();
         this.labels = new HashMap<>();
+        this.symbols = new SymbolTable();
+        this.arrays = new SymbolTable();
+        this.arrayDimensions = new ArrayList<>();
         this.forStatements = new Stack<>();
+        this.forLines = new HashMap<>();
+        this.labelReferences = new ArrayList<>();
+        this.statementLabels = new ArrayList<>();
+        this.statementLines = new ArrayList<>();
     }
 
     private void parse() {
+        lexer = new Lexer();
         currentLine = 0;
         for (String line : source) {
             String label;
-            String verb;
-            tokenIdx = 0;
-            tokens = line.replaceAll("\\(", " \\( ")
-                    .replaceAll("\\)", " \\) ")
-                    .split("\\s+");
-            if (tokens.length == 0) continue;
-            if (Character.isDigit(tokens[0].charAt(0))) {
-                label = tokens[0];
-                verb = tokens[1];
-                tokenIdx = 2;
-            } else if (tokens[0].endsWith(":")) {
-                label = tokens[0].substring(0, tokens[0].length() - 1);
-                verb = tokens[1];
-                tokenIdx = 2;
+            lexer.reset(line);
+            if (lexer.type == Lexer.TokenType.END) {
+                currentLine++;
+                continue;
+            }
+            if (lexer.type == Lexer.TokenType.NUMBER) {
+                label = lexer.text();
+                lexer.next();
+            } else if (lexer.type == Lexer.TokenType.IDENTIFIER && lexer.peek() == ':') {
+                label = lexer.text();
+                lexer.next();
+                lexer.next();
             } else {
                 label = String.valueOf(currentLine);
-                verb = tokens[0];
-                tokenIdx = 1;
             }
-            statements.add(parseStatement(verb));
+            statements.add(parseStatement());
+            if (lexer.type != Lexer.TokenType.END) {
+                syntaxError(String.format("Unexpected %s", lexer.text()));
+            }
             labels.put(label, statements.size() - 1);
+            statementLabels.add(label);
+            statementLines.add(currentLine);
             currentLine++;
         }
+        finish();
     }
 
-    private Statement parseStatement(String verb) {
-        Statement statement = null;
-        if (verb.equalsIgnoreCase("LET")) {
+    // links the parsed statements and builds the program to run
+    private void finish() {
+        for (int forStatementId : forStatements) {
+            error(forLines.get(forStatementId), "FOR without NEXT");
+        }
+        link();
+        checkParallelLoops();
+        program = statements.toArray(new Statement[0]);
+        if (options.optimize) {
+            program = Optimizer.optimize(program, symbols.size());
+        }
+        profileLabels = statementLabels.toArray(new String[0]);
+        profileSources = new String[program.length];
+        profileLines = new int[program.length];
+        for (int i = 0; i < program.length; i++) {
+            profileLines[i] = statementLines.get(i);
+            profileSources[i] = source.get(profileLines[i]).trim();
+        }
+        install(program);
+        // the program is not modified after this point, so one instance can be run by many threads
+        lexer = null;
+        statementLabels = null;
+        statementLines = null;
+        forStatements = null;
+        forLines = null;
+        arrayDimensions = null;
+        labelReferences = null;
+    }
+
+    // takes the program from a cache entry instead of parsing the source
+    private void restore(ProgramCodec.Image image) {
+        this.errors = new ArrayList<>();
+        this.symbols = new SymbolTable();
+        this.arrays = new SymbolTable();
+        image.variables.forEach(symbols::define);
+        image.arrays.forEach(arrays::define);
+        this.loopCount = image.loopCount;
+        this.profileLabels = image.labels;
+        this.profileLines = image.lines;
+        this.profileSources = new String[image.program.length];
+        for (int i = 0; i < image.program.length; i++) {
+            profileSources[i] = source.get(profileLines[i]).trim();
+        }
+        install(image.program);
+        this.loadedFromCache = true;
+    }
+
+    // sets the program to run, the interpreter runs the fused form unless JBasicOptions.fuse(false)
+    private void install(Statement[] program) {
+        this.program = program;
+        this.interpreted = options.fuse ? Fuser.fuse(program) : program;
+        for (Statement statement : program) {
+            if (statement instanceof ParallelForStatement) {
+                ((ParallelForStatement) statement).program = interpreted;
+            }
+        }
+        if (options.engine == Engine.TIERED) {
+            tiers = TierMetrics.of(program, profileLabels);
+        }
+    }
+
+    // resolves the label of every GOTO to the index of its statement
+    private void link() {
+        for (LabelReference reference : labelReferences) {
+            Integer target = labels.get(reference.statement.label);
+            if (target == null) {
+                error(reference.line, String.format("Undefined label %s", reference.statement.label));
+            } else {
+                reference.statement.target = target;
+            }
+        }
+    }
+
+    // the body of a PARALLEL FOR must not be left or entered by GOTO, must not change the screen, must not
+    // call subroutines and must not DIM, as the iterations run on separate contexts
+    private void checkParallelLoops() {
+        for (int i = 0; i < statements.size(); i++) {
+            if (!(statements.get(i) instanceof ParallelForStatement)
+                    || ((ForStatement) statements.get(i)).endFor <= i) {
+                continue;
+            }
+            int bodyStart = i + 1;
+            int next = ((ForStatement) statements.get(i)).endFor - 1;
+            for (int j = 0; j < statements.size(); j++) {
+                Statement statement = statements.get(j);
+                if (statement instanceof IfStatement) {
+                    statement = ((IfStatement) statement).thenStatement;
+                }
+                boolean inside = j >= bodyStart && j < next;
+                if (inside && statement instanceof GosubStatement) {
+                    error(statementLines.get(j), "GOSUB inside PARALLEL FOR");
+                } else if (inside && statement instanceof ReturnStatement) {
+                    error(statementLines.get(j), "RETURN inside PARALLEL FOR");
+                } else if (statement instanceof GotoStatement && ((GotoStatement) statement).target >= 0) {
+                    int target = ((GotoStatement) statement).target;
+                    boolean targetInside = target >= bodyStart && target <= next;
+                    if (inside && !targetInside) {
+                        error(statementLines.get(j), "GOTO out of PARALLEL FOR");
+                    } else if (!inside && targetInside && j != next) {
+                        error(statementLines.get(j), String.format("%s into PARALLEL FOR",
+                                statement instanceof GosubStatement ? "GOSUB" : "GOTO"));
+                    }
+                } else if (inside && statement instanceof ScreenStatement) {
+                    error(statementLines.get(j), "SCREEN inside PARALLEL FOR");
+                } else if (inside && statement instanceof DimStatement) {
+                    // a worker would only set the array in its own context, it would be gone after the loop
+                    error(statementLines.get(j), "DIM inside PARALLEL FOR");
+                }
+            }
+        }
+    }
+
+    private Statement parseStatement() {
+        Statement statement;
+        if (lexer.type != Lexer.TokenType.IDENTIFIER) {
+            syntaxError(String.format("Expecting a statement but got %s", lexer.text()));
+            return new Statement();
+        }
+        if (lexer.isKeyword("LET")) {
+            lexer.next();
             statement = parseLetStatement();
-        } else if (verb.equalsIgnoreCase("PRINT")) {
+        } else if (lexer.isKeyword("PRINT")) {
+            lexer.next();
             statement = parsePrintStatement();
-        } else if (verb.equalsIgnoreCase("GOTO")) {
-            statement = parseGotoStatement();
-        } else if (verb.equalsIgnoreCase("FOR")) {
-            statement = parseForStatement();
-        } else if (verb.equalsIgnoreCase("NEXT")) {
+        } else if (lexer.isKeyword("GOTO")) {
+            lexer.next();
+            statement = parseGotoStatement(false);
+        } else if (lexer.isKeyword("GOSUB")) {
+            lexer.next();
+            statement = parseGotoStatement(true);
+        } else if (lexer.isKeyword("RETURN")) {
+            lexer.next();
+            statement = new ReturnStatement(currentLine);
+        } else if (lexer.isKeyword("FOR")) {
+            lexer.next();
+            statement = parseForStatement(false);
+        } else if (lexer.isKeyword("PARALLEL")) {
+            lexer.next();
+            consumeKeyword("FOR");
+            statement = parseForStatement(true);
+        } else if (lexer.isKeyword("NEXT")) {
+            lexer.next();
             statement = parseNextStatement();
-        } else if (verb.equalsIgnoreCase("IF")) {
+        } else if (lexer.isKeyword("IF")) {
+            lexer.next();
             statement = parseIfStatement();
-        } else if (verb.equalsIgnoreCase("SCREEN")) {
+        } else if (lexer.isKeyword("SCREEN")) {
+            lexer.next();
             statement = parseScreenStatement();
-        } else if (verb.equalsIgnoreCase("PLOT")) {
+        } else if (lexer.isKeyword("PLOT")) {
+            lexer.next();
             statement = parsePlotStatement();
+        } else if (lexer.isKeyword("DIM")) {
+            lexer.next();
+            statement = parseDimStatement();
+        } else if (lexer.isKeyword("MAT")) {
+            lexer.next();
+            statement = parseMatStatement();
+        } else {
+            syntaxError(String.format("Unknown statement %s", lexer.text()));
+            statement = new Statement();
         }
         return statement;
     }
@@ -421,6 +1515,99 @@ public class JBasic {
         return new PlotStatement(x, y, c);
     }
 
+    private Statement parseDimStatement() {
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<BasicExpression> rows = new ArrayList<>();
+        ArrayList<BasicExpression> columns = new ArrayList<>();
+        do {
+            if (!names.isEmpty()) {
+                lexer.next();
+            }
+            String name = parseIdentifier();
+            consume("(");
+            BasicExpression row = parseExpression();
+            BasicExpression column = null;
+            if (lexer.is(",")) {
+                lexer.next();
+                column = parseExpression();
+            }
+            consume(")");
+            int slot = arrays.define(name);
+            int dimensions = column == null ? 1 : 2;
+            if (slot == arrayDimensions.size()) {
+                arrayDimensions.add(dimensions);
+            } else if (arrayDimensions.get(slot) != dimensions) {
+                error(String.format("Array %s was declared with %s", name, indexes(arrayDimensions.get(slot))));
+            }
+            names.add(name);
+            rows.add(row);
+            columns.add(column);
+        } while (lexer.is(","));
+        int[] slots = new int[names.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = arrays.slotOf(names.get(i));
+        }
+        return new DimStatement(names.toArray(new String[0]), slots, rows.toArray(new BasicExpression[0]),
+                columns.toArray(new BasicExpression[0]), currentLine);
+    }
+
+    // MAT A = ZER | CON | TRN(B) | (K) * B | B | B + C | B - C | B * C
+    private Statement parseMatStatement() {
+        ArrayList<String> names = new ArrayList<>();
+        names.add(parseArrayName());
+        consume("=");
+        MatStatement.Operation operation;
+        BasicExpression factor = null;
+        if (lexer.isKeyword("ZER") || lexer.isKeyword("CON")) {
+            operation = lexer.isKeyword("ZER") ? MatStatement.Operation.ZER : MatStatement.Operation.CON;
+            lexer.next();
+        } else if (lexer.isKeyword("TRN")) {
+            operation = MatStatement.Operation.TRANSPOSE;
+            lexer.next();
+            consume("(");
+            names.add(parseArrayName());
+            consume(")");
+        } else if (lexer.is("(")) {
+            operation = MatStatement.Operation.SCALE;
+            lexer.next();
+            factor = parseExpression();
+            consume(")");
+            consume("*");
+            names.add(parseArrayName());
+        } else {
+            names.add(parseArrayName());
+            if (lexer.is("+")) {
+                operation = MatStatement.Operation.ADD;
+            } else if (lexer.is("-")) {
+                operation = MatStatement.Operation.SUBTRACT;
+            } else if (lexer.is("*")) {
+                operation = MatStatement.Operation.MULTIPLY;
+            } else {
+                operation = MatStatement.Operation.COPY;
+            }
+            if (operation != MatStatement.Operation.COPY) {
+                lexer.next();
+                names.add(parseArrayName());
+            }
+        }
+        int[] slots = new int[names.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = arrays.slotOf(names.get(i));
+        }
+        return new MatStatement(operation, slots, names.toArray(new String[0]), factor, currentLine);
+    }
+
+    // the name of an array declared by an earlier DIM
+    private String parseArrayName() {
+        String name = parseIdentifier();
+        if (arrays.slotOf(name) < 0) {
+            error(String.format("Array %s is not declared with DIM", name));
+            arrays.define(name);
+            arrayDimensions.add(2);
+        }
+        return name;
+    }
+
     private Statement parseScreenStatement() {
         BasicExpression mode = parseExpression();
         return new ScreenStatement(mode);
@@ -428,14 +1615,22 @@ public class JBasic {
 
     private Statement parseIfStatement() {
         BasicExpression q = parseExpression();
-        consume("THEN");
-        String verb = tokens[tokenIdx++];
-        Statement thenStatement = parseStatement(verb);
-        return new IfStatement(q, thenStatement);
+        consumeKeyword("THEN");
+        Statement thenStatement = parseStatement();
+        return IfStatement.create(q, thenStatement);
     }
 
     private Statement parseNextStatement() {
-        String varName = tokens[tokenIdx];
+        String varName = parseIdentifier();
+        return lineMode ? new UnpairedNext(varName) : pairNext(varName);
+    }
+
+    // the NEXT of the innermost open FOR, at the end of the statements
+    private Statement pairNext(String varName) {
+        if (forStatements.isEmpty()) {
+            error("NEXT without FOR");
+            return new Statement();
+        }
         int forStatementId = forStatements.peek();
         ForStatement fs = (ForStatement) statements.get(forStatementId);
         if (!fs.getVarName().equalsIgnoreCase(varName)) {
@@ -444,33 +1639,87 @@ public class JBasic {
         }
         forStatements.pop();
         fs.setEndFor(statements.size() + 1);
-        return new GotoStatement(forStatementId);
+        return new NextStatement(fs.slot, fs.loopId, forStatementId + 1);
     }
 
-    private Statement parseForStatement() {
-        String varName = tokens[tokenIdx++];
+    private Statement parseForStatement(boolean parallel) {
+        String varName = parseIdentifier();
         consume("=");
         BasicExpression start = parseExpression();
-        consume("TO");
+        consumeKeyword("TO");
         BasicExpression end = parseExpression();
-        forStatements.push(statements.size());
-        return new ForStatement(varName, start, end);
+        BasicExpression step = null;
+        if (lexer.isKeyword("STEP")) {
+            lexer.next();
+            step = parseExpression();
+        }
+        int index = statements.size();
+        if (!lineMode) {
+            forStatements.push(index);
+            forLines.put(index, currentLine);
+        }
+        // in line mode linkLines gives out the loop ids, so replaced lines do not use any up
+        int loopId = lineMode ? -1 : loopCount++;
+        if (parallel) {
+            return new ParallelForStatement(varName, symbols.define(varName), loopId, start, end, step,
+                    index + 1, currentLine);
+        }
+        return new ForStatement(varName, symbols.define(varName), loopId, start, end, step);
     }
 
     private void consume(String expected) {
-        if (!tokens[tokenIdx].equals(expected)) {
-            error(String.format("Expecting %s but got %s", expected, tokens[tokenIdx]));
+        if (lexer.is(expected)) {
+            lexer.next();
+        } else {
+            syntaxError(String.format("Expecting %s but got %s", expected, lexer.text()));
+        }
+    }
+
+    private void consumeKeyword(String expected) {
+        if (lexer.isKeyword(expected)) {
+            lexer.next();
+        } else {
+            syntaxError(String.format("Expecting %s but got %s", expected, lexer.text()));
+        }
+    }
+
+    private String parseIdentifier() {
+        String name = lexer.text();
+        if (lexer.type != Lexer.TokenType.IDENTIFIER) {
+            syntaxError(String.format("Expecting a variable but got %s", name));
         }
-        tokenIdx++;
+        lexer.next();
+        return name;
     }
 
     private void error(String errorMessage) {
-        errors.add(String.format("%s\nError [Line %d]: %s", source.get(currentLine),
-                currentLine, errorMessage));
+        error(currentLine, errorMessage);
+    }
+
+    private void error(int line, String errorMessage) {
+        errors.add(String.format("%s\nError [Line %d]: %s", source.get(line),
+                line, errorMessage));
     }
 
-    private Statement parseGotoStatement() {
-        return new GotoStatement(tokens[tokenIdx++]);
+    // an error at the position of the current token, only the first one of a line is reported
+    private void syntaxError(String errorMessage) {
+        if (syntaxErrorLine == currentLine) {
+            return;
+        }
+        syntaxErrorLine = currentLine;
+        errors.add(String.format("%s\nError [Line %d, Column %d]: %s", source.get(currentLine),
+                currentLine, lexer.column(), errorMessage));
+    }
+
+    private Statement parseGotoStatement(boolean gosub) {
+        GotoStatement statement = gosub ? new GosubStatement(lexer.text(), currentLine)
+                : new GotoStatement(lexer.text());
+        if (lexer.type != Lexer.TokenType.NUMBER && lexer.type != Lexer.TokenType.IDENTIFIER) {
+            syntaxError(String.format("Expecting a label but got %s", lexer.text()));
+        }
+        lexer.next();
+        labelReferences.add(new LabelReference(statement, currentLine));
+        return statement;
     }
 
     private PrintStatement parsePrintStatement() {
@@ -480,108 +1729,478 @@ public class JBasic {
         return new PrintStatement(exprs);
     }
 
-    private LetStatement parseLetStatement() {
-        String variable = tokens[tokenIdx++];
+    private Statement parseLetStatement() {
+        if (lexer.type == Lexer.TokenType.IDENTIFIER && lexer.peek() == '(') {
+            ArrayExpression element = parseArrayElement();
+            consume("=");
+            return new ArrayLetStatement(element, parseExpression());
+        }
+        String variable = parseIdentifier();
         consume("=");
-        return new LetStatement(variable, parseExpression());
+        return new LetStatement(symbols.define(variable), parseExpression());
+    }
+
+    private static final int COMPARISON = 1;
+    private static final int ADDITIVE = 2;
+    private static final int MULTIPLICATIVE = 3;
+    private static final int POWER = 4;
+
+    private static int precedence(String operator) {
+        switch (operator) {
+            case "+":
+            case "-":
+                return ADDITIVE;
+            case "*":
+            case "/":
+                return MULTIPLICATIVE;
+            case "^":
+                return POWER;
+            default:
+                return COMPARISON;
+        }
     }
 
+    // OR binds weakest, then AND, then NOT, then the operators of parseExpression(int)
     private BasicExpression parseExpression() {
-        BasicExpression leftVal = parseAtom();
-        BasicExpression resultExpr = leftVal;
-        if (tokenIdx >= tokens.length) return leftVal;
-        while (tokenIdx < tokens.length) {
-            // a very poor man's operator check
-            String thisToken = tokens[tokenIdx];
-            if ((thisToken.length() == 1 && "+-*/^<>=".contains(thisToken)) ||
-                    (thisToken.length() == 2 && ">=<=".contains(thisToken))) {
-                String operator = tokens[tokenIdx++];
-                BasicExpression expr = parseAtom();
-                resultExpr = new ArithmeticExpression(resultExpr, operator, expr);
+        BasicExpression expr = parseConjunction();
+        while (lexer.isKeyword("OR")) {
+            lexer.next();
+            expr = new OrNode(expr, parseConjunction());
+        }
+        return expr;
+    }
+
+    private BasicExpression parseConjunction() {
+        BasicExpression expr = parseNegation();
+        while (lexer.isKeyword("AND")) {
+            lexer.next();
+            expr = new AndNode(expr, parseNegation());
+        }
+        return expr;
+    }
+
+    private BasicExpression parseNegation() {
+        if (lexer.isKeyword("NOT")) {
+            lexer.next();
+            return new NotNode(parseNegation());
+        }
+        return parseExpression(COMPARISON);
+    }
+
+    // precedence climbing: parses operators binding at least as tight as minPrecedence
+    private BasicExpression parseExpression(int minPrecedence) {
+        BasicExpression resultExpr = parseUnary();
+        while (lexer.type == Lexer.TokenType.OPERATOR && precedence(lexer.symbol) >= minPrecedence) {
+            String operator = lexer.symbol;
+            int precedence = precedence(operator);
+            lexer.next();
+            // ^ is right associative, all other operators are left associative
+            BasicExpression expr = parseExpression(precedence == POWER ? POWER : precedence + 1);
+            BinaryNode node = BinaryNode.create(operator, resultExpr, expr);
+            if (node == null) {
+                error(String.format("Unsupported operator %s", operator));
             } else {
-                break;
+                resultExpr = node;
             }
         }
         return resultExpr;
     }
 
+    // unary minus binds weaker than ^, so -2^2 is -4
+    private BasicExpression parseUnary() {
+        if (lexer.is("-")) {
+            lexer.next();
+            return new NegNode(parseExpression(POWER));
+        } else if (lexer.is("+")) {
+            lexer.next();
+            return parseExpression(POWER);
+        }
+        return parseAtom();
+    }
+
     private BasicExpression parseAtom() {
-        BasicValue val = new BasicValue();
         BasicExpression expr;
-        try {
-            val.dblValue = Double.valueOf(tokens[tokenIdx]);
-            expr = new BasicExpression(val);
-            tokenIdx++;
-        } catch (NumberFormatException e) {
-            if (tokens[tokenIdx].startsWith("(")) {
-                consume("(");
-                expr = parseExpression();
-                consume(")");
-            } else if (tokenIdx + 1 < tokens.length && tokens[tokenIdx + 1].equals("(")) {
-                expr = parseCallExpression();
-            } else {
-                expr = new VariableExpression(tokens[tokenIdx]);
-            }
+        if (lexer.type == Lexer.TokenType.NUMBER) {
+            expr = new BasicExpression(lexer.number);
+            lexer.next();
+        } else if (lexer.is("(")) {
+            lexer.next();
+            expr = parseExpression();
+            consume(")");
+        } else if (lexer.type == Lexer.TokenType.IDENTIFIER && lexer.peek() == '(') {
+            expr = parseCallExpression();
+        } else if (lexer.type == Lexer.TokenType.IDENTIFIER) {
+            expr = new VariableExpression(symbols.define(lexer.text()));
+            lexer.next();
+        } else {
+            syntaxError(String.format("Expecting an expression but got %s", lexer.text()));
+            expr = new BasicExpression(0.0);
         }
-        //tokenIdx++;
         return expr;
     }
 
+    // A(I) or A(I, J) of an array declared by an earlier DIM
+    private ArrayExpression parseArrayElement() {
+        String name = lexer.text();
+        int slot = arrays.slotOf(name);
+        lexer.next();
+        consume("(");
+        BasicExpression row = parseExpression();
+        BasicExpression column = null;
+        if (lexer.is(",")) {
+            lexer.next();
+            column = parseExpression();
+        }
+        consume(")");
+        if (slot < 0) {
+            error(String.format("Array %s is not declared with DIM", name));
+            slot = arrays.define(name);
+            arrayDimensions.add(column == null ? 1 : 2);
+        } else if (arrayDimensions.get(slot) != (column == null ? 1 : 2)) {
+            error(String.format("Array %s needs %s", name, indexes(arrayDimensions.get(slot))));
+        }
+        return new ArrayExpression(name, slot, row, column, currentLine);
+    }
+
+    private static String indexes(int dimensions) {
+        return dimensions == 1 ? "one index" : "two indexes";
+    }
+
     private BasicExpression parseCallExpression() {
-        String funcName = tokens[tokenIdx++];
+        if (arrays.slotOf(lexer.text()) >= 0) {
+            return parseArrayElement();
+        }
+        String funcName = lexer.text();
+        lexer.next();
         consume("(");
         BasicExpression paramsExpr = parseExpression();
         consume(")");
-        return new CallExpression(funcName, paramsExpr);
+        BuiltinCall call = BuiltinCall.create(funcName, paramsExpr);
+        if (call == null) {
+            error(String.format("Unknown function %s", funcName));
+            return paramsExpr;
+        }
+        return call;
     }
 
     public List<String> getErrors() {
-        return this.errors;
+        return Collections.unmodifiableList(this.errors);
+    }
+
+    public SymbolTable getSymbols() {
+        return this.symbols;
+    }
+
+    Statement[] getProgram() {
+        return this.program;
+    }
+
+    // loop counters and promotions with Engine.TIERED, null for the other engines
+    public TierMetrics getTierMetrics() {
+        return this.tiers;
+    }
+
+    Statement[] getInterpretedProgram() {
+        return this.interpreted;
     }
 
     private void run() {
-        run(System.out);
+        JBasicContext context;
+        if (options.bufferedOutput) {
+            // write straight to the standard output file descriptor, bypassing System.out
+            context = createContext(new ChannelSink(new FileOutputStream(FileDescriptor.out).getChannel(), null,
+                    options.outputBufferSize, options.outputFlushMillis));
+        } else {
+            context = createContext(System.out);
+        }
+        run(context);
+        if (context.profiler != null && options.profileOutput == null) {
+            System.err.print(context.profiler.report(ProfileFormat.TEXT));
+        }
     }
 
     public void run(PrintStream stream) {
-        JBasicContext context = new JBasicContext(this.labels);
-        context.out = stream;
-        run(context);
+        run(createContext(stream));
+    }
+
+    // buffered output only, as a channel has no unbuffered form
+    public void run(WritableByteChannel channel) {
+        run(createContext(new ChannelSink(channel, null, options.outputBufferSize, options.outputFlushMillis)));
+    }
+
+    JBasicContext createContext(PrintStream stream) {
+        OutputSink sink = options.bufferedOutput
+                ? new ChannelSink(Channels.newChannel(stream), stream, options.outputBufferSize,
+                options.outputFlushMillis)
+                : new StreamSink(stream);
+        return createContext(sink);
+    }
+
+    JBasicContext createContext(OutputSink sink) {
+        JBasicContext context = new JBasicContext(this.symbols, this.arrays.size(), this.loopCount);
+        context.options = options;
+        context.out = sink;
+        if (options.profile) {
+            context.profiler = new Profiler(profileLabels, profileSources, profileLines);
+        }
+        return context;
+    }
+
+    void run(JBasicContext context) {
+        // profiled and guarded runs always interpret, compiled programs have no per statement hooks
+        // tiered runs start on the interpreter and compile from there
+        CompiledProgram compiledProgram = options.engine != Engine.INTERPRETER && options.engine != Engine.TIERED
+                && context.profiler == null && context.guard == null ? getCompiledProgram() : null;
+        context.compiled = compiledProgram;
+        try {
+            if (context.profiler != null) {
+                interpretProfiled(context);
+            } else if (context.guard != null) {
+                interpretGuarded(context);
+            } else if (compiledProgram != null) {
+                compiledProgram.run(context);
+            } else if (tiers != null) {
+                interpretTiered(context);
+            } else {
+                interpret(context);
+            }
+        } finally {
+            context.out.flush();
+        }
+        if (context.screen != null) {
+            context.screen.flush();
+        }
+    }
+
+    // compiles the program for the engine on first use, returns null if it cannot be compiled
+    CompiledProgram getCompiledProgram() {
+        CompiledProgram compiledProgram = this.compiled;
+        if (compiledProgram == null) {
+            synchronized (this) {
+                compiledProgram = this.compiled;
+                if (compiledProgram == null && !compileFailed) {
+                    compiledProgram = options.engine == Engine.VM ? VmCompiler.compile(program, symbols)
+                            : BytecodeCompiler.compile(program, symbols);
+                    if (compiledProgram == null && options.engine == Engine.TIERED) {
+                        compiledProgram = VmCompiler.compile(program, symbols);
+                    }
+                    this.compiled = compiledProgram;
+                    compileFailed = compiledProgram == null;
+                }
+            }
+        }
+        return compiledProgram;
     }
 
-    private void run(JBasicContext context) {
-        while (context.counter < this.statements.size()) {
-            Statement currentStatement = this.statements.get(context.counter);
+    private void interpret(JBasicContext context) {
+        Statement[] program = this.interpreted;
+        while (context.counter < program.length) {
+            Statement currentStatement = program[context.counter];
             context.counter++;
             currentStatement.run(context);
         }
     }
 
+    /*
+     Same as interpret, but counts the entries and back edges of every loop
+     on the way. When a loop reaches the threshold the program is compiled
+     on a background thread; once that is done, the run continues compiled
+     at the next loop entry or back edge, where the counter is at the start
+     of a statement and all state is in the context.
+     */
+    private void interpretTiered(JBasicContext context) {
+        Statement[] program = this.interpreted;
+        TierMetrics tiers = this.tiers;
+        int[] entryOf = tiers.entryOf;
+        int[] backEdgeOf = tiers.backEdgeOf;
+        long threshold = options.tierThreshold;
+        while (context.counter < program.length) {
+            int index = context.counter;
+            context.counter++;
+            program[index].run(context);
+            int next = context.counter;
+            int loop = -1;
+            if (next <= index && backEdgeOf[next] >= 0) {
+                loop = backEdgeOf[next];
+                tiers.backEdges[loop]++;
+            }
+            // the back edge of an outer loop can enter an inner one
+            if (entryOf[next] >= 0 && entryOf[next] != loop) {
+                loop = entryOf[next];
+                tiers.invocations[loop]++;
+            }
+            if (loop < 0) {
+                continue;
+            }
+            CompiledProgram compiledProgram = this.compiled;
+            if (compiledProgram != null) {
+                tiers.switched();
+                context.compiled = compiledProgram;
+                compiledProgram.run(context);
+                return;
+            }
+            if (!promoting && tiers.invocations[loop] + tiers.backEdges[loop] >= threshold) {
+                promote(loop);
+            }
+        }
+    }
+
+    // compiles the program on a background thread, at most once
+    private void promote(int loop) {
+        synchronized (this) {
+            if (promoting) {
+                return;
+            }
+            promoting = true;
+        }
+        tiers.promoting(loop, tiers.invocations[loop] + tiers.backEdges[loop]);
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            CompiledProgram compiledProgram = getCompiledProgram();
+            tiers.compiled(compiledProgram, System.nanoTime() - start);
+        }, "jbasic-compiler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // same as interpret, but charges the time of every statement to its counters
+    private void interpretProfiled(JBasicContext context) {
+        Statement[] program = this.program;
+        Profiler profiler = context.profiler;
+        long[] counts = profiler.counts;
+        long[] nanos = profiler.nanos;
+        profiler.register();
+        try {
+            long last = System.nanoTime();
+            while (context.counter < program.length) {
+                int index = context.counter;
+                context.counter++;
+                program[index].run(context);
+                long now = System.nanoTime();
+                counts[index]++;
+                nanos[index] += now - last;
+                last = now;
+            }
+        } finally {
+            profiler.unregister();
+            if (options.profileOutput != null) {
+                profiler.write(options.profileOutput, options.profileFormat);
+            }
+        }
+    }
+
+    // same as interpret, but checks the limits of the guard every RunGuard.CHECK_INTERVAL statements
+    private void interpretGuarded(JBasicContext context) {
+        Statement[] program = this.program;
+        RunGuard guard = context.guard;
+        long executed = 0;
+        long nextCheck = 0;
+        try {
+            while (context.counter < program.length) {
+                if (executed == nextCheck) {
+                    guard.check(executed);
+                    nextCheck = Math.min(executed + RunGuard.CHECK_INTERVAL, guard.budget);
+                }
+                Statement currentStatement = program[context.counter];
+                context.counter++;
+                currentStatement.run(context);
+                executed++;
+            }
+        } finally {
+            guard.executed = executed;
+        }
+    }
+
     private static void halt(String msg) {
         System.err.println(msg);
         System.exit(-1);
     }
 
+    private static void usage() {
+        halt("Usage: jbasic [--engine=interpreter|compiler|vm|tiered] [--tier-threshold=count]"
+                + " [--headless=image.png|frames.rgb] [--frame-every=plots] [--unbuffered]"
+                + " [--profile[=report.txt|.json|.csv]] [--cache[=directory]] source.bas | --repl");
+    }
+
     public static void main(String[] args) {
         JBasic interpreter;
         List<String> sourceLines;
-        if (args.length == 0)
+        JBasicOptions options = new JBasicOptions();
+        String sourceFile = null;
+        boolean repl = false;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                try {
+                    options.engine(Engine.valueOf(arg.substring("--engine=".length()).toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
+            } else if (arg.startsWith("--headless=")) {
+                String output = arg.substring("--headless=".length());
+                ScreenFormat format = output.endsWith(".rgb") || output.endsWith(".raw")
+                        ? ScreenFormat.RAW : ScreenFormat.PNG;
+                options.headless(Paths.get(output), format);
+            } else if (arg.startsWith("--frame-every=")) {
+                try {
+                    options.frameEvery(Integer.parseInt(arg.substring("--frame-every=".length())));
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
+            } else if (arg.equals("--unbuffered")) {
+                options.bufferedOutput(false);
+            } else if (arg.equals("--profile")) {
+                options.profile();
+            } else if (arg.startsWith("--profile=")) {
+                String output = arg.substring("--profile=".length());
+                ProfileFormat format = output.endsWith(".json") ? ProfileFormat.JSON
+                        : output.endsWith(".csv") ? ProfileFormat.CSV : ProfileFormat.TEXT;
+                options.profile(Paths.get(output), format);
+            } else if (arg.equals("--cache")) {
+                options.cache(Paths.get(System.getProperty("user.home"), ".cache", "jbasic"));
+            } else if (arg.startsWith("--cache=")) {
+                options.cache(Paths.get(arg.substring("--cache=".length())));
+            } else if (arg.startsWith("--tier-threshold=")) {
+                try {
+                    options.tierThreshold(Integer.parseInt(arg.substring("--tier-threshold=".length())));
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
+            } else if (arg.equals("--repl")) {
+                repl = true;
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                sourceFile = arg;
+            }
+        }
+        if (repl) {
+            try {
+                new JBasicRepl(options, System.out).run(new BufferedReader(new InputStreamReader(System.in)));
+            } catch (IOException e) {
+                halt("Unable to read the input");
+            }
+            return;
+        }
+        if (sourceFile == null)
             halt("No source given.");
 
         try {
-            sourceLines = Files.readAllLines(Paths.get(args[0]));
-            interpreter = new JBasic(sourceLines);
-            interpreter.parse();
+            sourceLines = Files.readAllLines(Paths.get(sourceFile));
+            interpreter = new JBasic(sourceLines, options);
             List<String> errors = interpreter.getErrors();
             if (errors.size() != 0) {
                 errors.forEach(System.err::println);
                 halt("Interpretation failed.");
             }
 
-            interpreter.run();
+            try {
+                interpreter.run();
+            } catch (BasicRuntimeException e) {
+                halt(String.format("%s\n%s", sourceLines.get(e.getLine()), e.getMessage()));
+            }
 
         } catch (IOException e) {
-            halt(String.format("Unable to read file %s", args[1]));
+            halt(String.format("Unable to read file %s", sourceFile));
         }
     }
 
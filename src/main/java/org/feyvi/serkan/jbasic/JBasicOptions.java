@@ -0,0 +1,139 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.nio.file.Path;
+
+/*
+ Settings for parsing and running a program.
+ Setters return this so options can be chained.
+ */
+public class JBasicOptions {
+    Engine engine = Engine.INTERPRETER;
+    boolean optimize = true;
+    boolean fuse = true;
+    boolean vectorize = true;
+    boolean headless;
+    Path screenOutput;
+    ScreenFormat screenFormat = ScreenFormat.PNG;
+    int frameInterval;
+    boolean bufferedOutput = true;
+    int outputBufferSize = 64 * 1024;
+    long outputFlushMillis = 200;
+    boolean profile;
+    Path profileOutput;
+    ProfileFormat profileFormat = ProfileFormat.TEXT;
+    Path cacheDirectory;
+    int gosubDepth = 10_000;
+    int tierThreshold = 1000;
+
+    public JBasicOptions engine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    // false skips constant folding and the other rewrites of Optimizer
+    public JBasicOptions optimize(boolean optimize) {
+        this.optimize = optimize;
+        return this;
+    }
+
+    // false makes the interpreter dispatch every statement on its own instead of fusing straight-line
+    // runs into blocks, to compare the two
+    public JBasicOptions fuse(boolean fuse) {
+        this.fuse = fuse;
+        return this;
+    }
+
+    // false runs MAT statements on the scalar kernels even where the Vector API is available, see MatKernels
+    public JBasicOptions vectorize(boolean vectorize) {
+        this.vectorize = vectorize;
+        return this;
+    }
+
+    // SCREEN renders into memory only, no window is opened
+    public JBasicOptions headless() {
+        return headless(null, ScreenFormat.PNG);
+    }
+
+    // SCREEN renders into memory and writes the final frame to output at program end
+    public JBasicOptions headless(Path output, ScreenFormat format) {
+        this.headless = true;
+        this.screenOutput = output;
+        this.screenFormat = format;
+        return this;
+    }
+
+    // with a headless screen, also write a frame every given number of PLOTs
+    public JBasicOptions frameEvery(int plots) {
+        if (plots < 0) {
+            throw new IllegalArgumentException("Frame interval must not be negative");
+        }
+        this.frameInterval = plots;
+        return this;
+    }
+
+    // false prints every value straight to the stream, as println does
+    public JBasicOptions bufferedOutput(boolean buffered) {
+        this.bufferedOutput = buffered;
+        return this;
+    }
+
+    // buffered output is written once this many bytes are pending
+    public JBasicOptions outputBufferSize(int bytes) {
+        this.outputBufferSize = bytes;
+        return this;
+    }
+
+    // buffered output is written once the oldest pending line is this old, 0 waits for a full buffer
+    public JBasicOptions outputFlushMillis(long millis) {
+        this.outputFlushMillis = millis;
+        return this;
+    }
+
+    // the deepest nesting of GOSUB before a run fails, which stops runaway recursion
+    public JBasicOptions gosubDepth(int levels) {
+        if (levels < 1) {
+            throw new IllegalArgumentException("GOSUB depth must be at least 1");
+        }
+        this.gosubDepth = levels;
+        return this;
+    }
+
+    // with Engine.TIERED, the entries and back edges a loop needs before the program is compiled
+    public JBasicOptions tierThreshold(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Tier threshold must be at least 1");
+        }
+        this.tierThreshold = count;
+        return this;
+    }
+
+    // keep parsed programs in directory and reuse them when the same source is loaded again
+    public JBasicOptions cache(Path directory) {
+        this.cacheDirectory = directory;
+        return this;
+    }
+
+    // count executions and time of every statement, readable through JMX while the program runs.
+    // Profiled runs always use the interpreter.
+    public JBasicOptions profile() {
+        this.profile = true;
+        return this;
+    }
+
+    // profile and write a report to output at the end of every run
+    public JBasicOptions profile(Path output, ProfileFormat format) {
+        this.profile = true;
+        this.profileOutput = output;
+        this.profileFormat = format;
+        return this;
+    }
+}
@@ -0,0 +1,181 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ Interactive editing and running of a numbered program.
+
+ A line starting with a number adds or replaces that line, a number on
+ its own deletes it. LIST prints the program, RUN runs it, NEW clears it
+ and BYE ends the session.
+
+ Every line is parsed once, when it is entered, and kept parsed in a
+ LineMap by its number. RUN links the parsed lines into a program, which
+ only resolves jump targets and pairs FOR with NEXT, and keeps that
+ program until the next edit. So an edit costs the parse of one line, not
+ of the whole program. Lines with errors are parsed again on RUN, as a
+ DIM entered later can make them valid.
+
+ Errors are reported with the line number of the program, not the
+ position of the line in it.
+ */
+public final class JBasicRepl {
+    private final JBasicOptions options;
+    private final PrintStream out;
+    private final LineMap<Line> lines = new LineMap<>();
+    // the text of every line by its line number, for the errors of JBasic
+    private final List<String> source = new AbstractList<String>() {
+        @Override
+        public String get(int number) {
+            Line line = lines.get(number);
+            return line == null ? null : line.text;
+        }
+
+        @Override
+        public int size() {
+            return lines.size() == 0 ? 0 : lines.numberAt(lines.size() - 1) + 1;
+        }
+    };
+    private JBasic parser;
+    // the program of the last RUN, null after an edit
+    private JBasic linked;
+    // lines parsed so far, to check that edits do not parse the rest of the program
+    int parsedLines;
+
+    private static final class Line {
+        final String text;
+        Statement statement;
+        List<String> errors;
+
+        Line(String text) {
+            this.text = text;
+        }
+    }
+
+    public JBasicRepl(JBasicOptions options, PrintStream out) {
+        this.options = options;
+        this.out = out;
+        this.parser = JBasic.lineParser(source, options);
+    }
+
+    // reads commands until BYE or the end of the input
+    public void run(BufferedReader in) throws IOException {
+        out.println("READY");
+        String input;
+        while ((input = in.readLine()) != null) {
+            if (!execute(input)) {
+                break;
+            }
+        }
+    }
+
+    // handles one line of input, returns false for BYE
+    public boolean execute(String input) {
+        String command = input.trim();
+        if (command.isEmpty()) {
+            return true;
+        }
+        if (Character.isDigit(command.charAt(0))) {
+            edit(command);
+            return true;
+        }
+        switch (command.toUpperCase(Locale.ROOT)) {
+            case "LIST":
+                list();
+                break;
+            case "RUN":
+                run();
+                out.println("READY");
+                break;
+            case "NEW":
+                lines.clear();
+                parser = JBasic.lineParser(source, options);
+                linked = null;
+                break;
+            case "BYE":
+                return false;
+            default:
+                out.println(String.format("Unknown command %s", command));
+                break;
+        }
+        return true;
+    }
+
+    private void edit(String text) {
+        int end = 0;
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        int number;
+        try {
+            number = Integer.parseInt(text.substring(0, end));
+        } catch (NumberFormatException e) {
+            out.println(String.format("Invalid line number %s", text.substring(0, end)));
+            return;
+        }
+        linked = null;
+        if (text.substring(end).trim().isEmpty()) {
+            lines.remove(number);
+            return;
+        }
+        Line line = new Line(text);
+        lines.put(number, line);
+        parse(number, line);
+        line.errors.forEach(out::println);
+    }
+
+    private void parse(int number, Line line) {
+        line.statement = parser.parseLine(number, line.text);
+        line.errors = new ArrayList<>(parser.getErrors());
+        parsedLines++;
+    }
+
+    private void list() {
+        for (int i = 0; i < lines.size(); i++) {
+            out.println(lines.valueAt(i).text);
+        }
+    }
+
+    private void run() {
+        if (linked == null) {
+            List<String> errors = new ArrayList<>();
+            int[] numbers = new int[lines.size()];
+            Statement[] statements = new Statement[lines.size()];
+            for (int i = 0; i < lines.size(); i++) {
+                Line line = lines.valueAt(i);
+                if (!line.errors.isEmpty()) {
+                    parse(lines.numberAt(i), line);
+                    errors.addAll(line.errors);
+                }
+                numbers[i] = lines.numberAt(i);
+                statements[i] = line.statement;
+            }
+            if (!errors.isEmpty()) {
+                errors.forEach(out::println);
+                return;
+            }
+            JBasic program = parser.linkLines(numbers, statements);
+            if (!program.getErrors().isEmpty()) {
+                program.getErrors().forEach(out::println);
+                return;
+            }
+            linked = program;
+        }
+        try {
+            linked.run(out);
+        } catch (BasicRuntimeException e) {
+            out.println(String.format("%s\n%s", source.get(e.getLine()), e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ Runs many parsed programs concurrently, one thread per program.
+
+ Every program gets a virtual thread, so thousands of programs cost no
+ more than their contexts.
+
+ Each run has a statement budget and a timeout, and can be cancelled.
+ These are checked cooperatively by the interpreter loop, so
+ "20 GOTO 10" ends when its budget or time is used up instead of holding
+ a thread forever. Scheduled programs always run on the interpreter, as
+ the compiled program has no place for these checks. PRINT output is
+ captured per run, unbuffered: a buffer per program would cost its memory
+ thousands of times, and getOutput() shows every line as soon as it is
+ printed.
+
+ A parsed JBasic can be submitted any number of times, also concurrently.
+ */
+public final class JBasicScheduler implements AutoCloseable {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final long created = System.nanoTime();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder running = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder stopped = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    // runs the program without limits, until it ends or is cancelled
+    public ProgramRun submit(JBasic program) {
+        return submit(program, 0, null);
+    }
+
+    // statementBudget 0 and a null timeout mean no limit; the timeout starts at submission
+    public ProgramRun submit(JBasic program, long statementBudget, Duration timeout) {
+        if (statementBudget < 0) {
+            throw new IllegalArgumentException("Statement budget must not be negative");
+        }
+        long budget = statementBudget == 0 ? Long.MAX_VALUE : statementBudget;
+        long deadline = timeout == null ? Long.MAX_VALUE : System.nanoTime() + timeout.toNanos();
+        ProgramRun run = new ProgramRun(program, new RunGuard(budget, deadline));
+        submitted.increment();
+        executor.execute(() -> execute(run));
+        return run;
+    }
+
+    private void execute(ProgramRun run) {
+        if (!run.start()) {
+            finish(run, ProgramRun.Status.CANCELLED, null);
+            return;
+        }
+        ProgramRun.Status status = ProgramRun.Status.FINISHED;
+        RuntimeException error = null;
+        running.increment();
+        try {
+            JBasicContext context = run.program.createContext(new StreamSink(run.stream));
+            context.guard = run.guard;
+            run.program.run(context);
+        } catch (ProgramStoppedException e) {
+            status = e.status;
+        } catch (RuntimeException e) {
+            status = ProgramRun.Status.FAILED;
+            error = e;
+        } finally {
+            running.decrement();
+        }
+        finish(run, status, error);
+    }
+
+    // the metrics are updated before the run completes, so they include it once completion() fires
+    private void finish(ProgramRun run, ProgramRun.Status status, RuntimeException error) {
+        run.stopClock();
+        long latency = run.getLatency().toNanos();
+        statements.add(run.getExecutedStatements());
+        latencyNanos.add(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        if (status == ProgramRun.Status.FINISHED) {
+            completed.increment();
+        } else if (status == ProgramRun.Status.FAILED) {
+            failed.increment();
+        } else {
+            stopped.increment();
+        }
+        run.end(status, error);
+    }
+
+    public long getSubmittedPrograms() {
+        return submitted.sum();
+    }
+
+    public long getRunningPrograms() {
+        return running.sum();
+    }
+
+    // programs that ran to their end
+    public long getCompletedPrograms() {
+        return completed.sum();
+    }
+
+    public long getFailedPrograms() {
+        return failed.sum();
+    }
+
+    // programs that were cancelled, timed out or ran out of budget
+    public long getStoppedPrograms() {
+        return stopped.sum();
+    }
+
+    public long getExecutedStatements() {
+        return statements.sum();
+    }
+
+    // ended programs per second since the scheduler was created
+    public double getProgramsPerSecond() {
+        return perSecond(completed.sum() + failed.sum() + stopped.sum());
+    }
+
+    public double getStatementsPerSecond() {
+        return perSecond(statements.sum());
+    }
+
+    private double perSecond(long count) {
+        double seconds = (System.nanoTime() - created) / 1e9;
+        return seconds > 0 ? count / seconds : 0;
+    }
+
+    // mean time from submission to the end of a run, over all ended runs
+    public Duration getAverageLatency() {
+        long ended = completed.sum() + failed.sum() + stopped.sum();
+        return ended == 0 ? Duration.ZERO : Duration.ofNanos(latencyNanos.sum() / ended);
+    }
+
+    public Duration getMaxLatency() {
+        return Duration.ofNanos(maxLatencyNanos.get());
+    }
+
+    // stops accepting programs and waits up to the timeout for running ones to end
+    public boolean shutdown(Duration timeout) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    // stops accepting programs, running ones continue until they end
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,206 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ Single pass, character level tokenizer for one source line.
+
+ The lexer does not build token objects: it keeps the type and position
+ of the current token, and next() moves on to the following one. Token
+ text is only copied out of the line when the parser asks for it, so
+ A+B*2 needs no spaces and no intermediate strings.
+ */
+final class Lexer {
+    enum TokenType {
+        NUMBER,
+        IDENTIFIER,
+        OPERATOR,
+        PUNCTUATION,
+        INVALID,
+        END
+    }
+
+    private String line;
+    private int pos;
+
+    TokenType type;
+    // bounds of the current token in the line
+    int start;
+    int end;
+    // value of a NUMBER token
+    double number;
+    // text of an OPERATOR or PUNCTUATION token, always one of the constants below
+    String symbol;
+
+    void reset(String line) {
+        this.line = line;
+        this.pos = 0;
+        next();
+    }
+
+    void next() {
+        int length = line.length();
+        while (pos < length && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        start = pos;
+        symbol = null;
+        if (pos >= length) {
+            type = TokenType.END;
+            end = pos;
+            return;
+        }
+        char c = line.charAt(pos);
+        if (isDigit(c) || (c == '.' && pos + 1 < length && isDigit(line.charAt(pos + 1)))) {
+            scanNumber();
+        } else if (Character.isLetter(c)) {
+            pos++;
+            while (pos < length && (Character.isLetterOrDigit(line.charAt(pos)) || line.charAt(pos) == '_'
+                    || line.charAt(pos) == '$')) {
+                pos++;
+            }
+            type = TokenType.IDENTIFIER;
+        } else {
+            scanSymbol(c);
+        }
+        end = pos;
+    }
+
+    private void scanNumber() {
+        int length = line.length();
+        long integer = 0;
+        boolean simple = true;
+        while (pos < length && isDigit(line.charAt(pos))) {
+            integer = integer * 10 + (line.charAt(pos) - '0');
+            simple &= pos - start < 15;
+            pos++;
+        }
+        if (pos < length && line.charAt(pos) == '.') {
+            simple = false;
+            pos++;
+            while (pos < length && isDigit(line.charAt(pos))) {
+                pos++;
+            }
+        }
+        if (pos < length && (line.charAt(pos) == 'e' || line.charAt(pos) == 'E')) {
+            int exponent = pos + 1;
+            if (exponent < length && (line.charAt(exponent) == '+' || line.charAt(exponent) == '-')) {
+                exponent++;
+            }
+            if (exponent < length && isDigit(line.charAt(exponent))) {
+                simple = false;
+                pos = exponent;
+                while (pos < length && isDigit(line.charAt(pos))) {
+                    pos++;
+                }
+            }
+        }
+        type = TokenType.NUMBER;
+        // integers of up to 15 digits are exact as a double, anything else is left to the JDK
+        number = simple ? integer : Double.parseDouble(line.substring(start, pos));
+    }
+
+    private void scanSymbol(char c) {
+        char following = pos + 1 < line.length() ? line.charAt(pos + 1) : 0;
+        type = TokenType.OPERATOR;
+        pos++;
+        switch (c) {
+            case '+':
+                symbol = "+";
+                break;
+            case '-':
+                symbol = "-";
+                break;
+            case '*':
+                symbol = "*";
+                break;
+            case '/':
+                symbol = "/";
+                break;
+            case '^':
+                symbol = "^";
+                break;
+            case '=':
+                symbol = "=";
+                break;
+            case '<':
+                if (following == '=') {
+                    symbol = "<=";
+                    pos++;
+                } else if (following == '>') {
+                    symbol = "<>";
+                    pos++;
+                } else {
+                    symbol = "<";
+                }
+                break;
+            case '>':
+                if (following == '=') {
+                    symbol = ">=";
+                    pos++;
+                } else {
+                    symbol = ">";
+                }
+                break;
+            case '(':
+                symbol = "(";
+                type = TokenType.PUNCTUATION;
+                break;
+            case ')':
+                symbol = ")";
+                type = TokenType.PUNCTUATION;
+                break;
+            case ',':
+                symbol = ",";
+                type = TokenType.PUNCTUATION;
+                break;
+            case ':':
+                symbol = ":";
+                type = TokenType.PUNCTUATION;
+                break;
+            case ';':
+                symbol = ";";
+                type = TokenType.PUNCTUATION;
+                break;
+            default:
+                type = TokenType.INVALID;
+                break;
+        }
+    }
+
+    // true if the current token is the given operator or punctuation
+    boolean is(String expected) {
+        return symbol != null && symbol.equals(expected);
+    }
+
+    // true if the current token is the given keyword, ignoring case
+    boolean isKeyword(String keyword) {
+        return type == TokenType.IDENTIFIER && end - start == keyword.length()
+                && line.regionMatches(true, start, keyword, 0, keyword.length());
+    }
+
+    // the first character after the current token that is not whitespace, or 0 at the end of the line
+    char peek() {
+        int i = end;
+        while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i < line.length() ? line.charAt(i) : 0;
+    }
+
+    String text() {
+        return type == TokenType.END ? "end of line" : line.substring(start, end);
+    }
+
+    // 1-based column of the current token
+    int column() {
+        return start + 1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
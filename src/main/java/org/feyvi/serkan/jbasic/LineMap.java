@@ -0,0 +1,81 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.util.Arrays;
+
+/*
+ Values by line number, kept sorted by number.
+
+ The numbers are an int[] searched by binary search, without boxing, and
+ the values a parallel array. Inserting or removing a line moves the
+ lines after it by one place with System.arraycopy, which for programs of
+ any realistic size costs less than parsing the line itself.
+ */
+final class LineMap<V> {
+    private int[] numbers = new int[16];
+    private Object[] values = new Object[16];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    int numberAt(int index) {
+        return numbers[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+        return (V) values[index];
+    }
+
+    // the value of the line, null if there is no such line
+    V get(int number) {
+        int index = Arrays.binarySearch(numbers, 0, size, number);
+        return index >= 0 ? valueAt(index) : null;
+    }
+
+    // adds or replaces the line, returns the value it replaced
+    V put(int number, V value) {
+        int index = Arrays.binarySearch(numbers, 0, size, number);
+        if (index >= 0) {
+            V old = valueAt(index);
+            values[index] = value;
+            return old;
+        }
+        index = -index - 1;
+        if (size == numbers.length) {
+            numbers = Arrays.copyOf(numbers, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        System.arraycopy(numbers, index, numbers, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        numbers[index] = number;
+        values[index] = value;
+        size++;
+        return null;
+    }
+
+    // removes the line, returns its value or null if there was no such line
+    V remove(int number) {
+        int index = Arrays.binarySearch(numbers, 0, size, number);
+        if (index < 0) {
+            return null;
+        }
+        V old = valueAt(index);
+        System.arraycopy(numbers, index + 1, numbers, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        values[size] = null;
+        return old;
+    }
+
+    void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
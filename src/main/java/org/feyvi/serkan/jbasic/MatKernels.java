@@ -0,0 +1,83 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ The loops of MatStatement, on the flat row by row storage of BasicArray.
+
+ These are the scalar versions. VectorMatKernels overrides them with the
+ Vector API, which JDK 21 only has as the incubator module
+ jdk.incubator.vector; it is used when the JVM runs with
+ --add-modules jdk.incubator.vector and JBasicOptions.vectorize() is not
+ turned off. Both give bit for bit the results of the same computation
+ written as FOR loops in BASIC: every element is computed on its own, and
+ the sums of a matrix product add their terms in the same order.
+ */
+class MatKernels {
+    static final MatKernels SCALAR = new MatKernels();
+    // null if the Vector API is not available
+    static final MatKernels VECTOR = vectorKernels();
+
+    private static MatKernels vectorKernels() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return null;
+        }
+        try {
+            return new VectorMatKernels();
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    static MatKernels of(JBasicOptions options) {
+        return options.vectorize && VECTOR != null ? VECTOR : SCALAR;
+    }
+
+    void add(double[] a, double[] b, double[] result) {
+        for (int i = 0; i < result.length; i++) {
+            result[i] = a[i] + b[i];
+        }
+    }
+
+    void subtract(double[] a, double[] b, double[] result) {
+        for (int i = 0; i < result.length; i++) {
+            result[i] = a[i] - b[i];
+        }
+    }
+
+    void scale(double factor, double[] a, double[] result) {
+        for (int i = 0; i < result.length; i++) {
+            result[i] = factor * a[i];
+        }
+    }
+
+    // result (rows by columns) = a (rows by inner) * b (inner by columns), result must not be a or b
+    void multiply(double[] a, double[] b, double[] result, int rows, int inner, int columns) {
+        for (int i = 0; i < rows; i++) {
+            int row = i * columns;
+            for (int j = 0; j < columns; j++) {
+                result[row + j] = 0.0;
+            }
+            // row i of a times row k of b is added to row i of the result, so all accesses are sequential
+            for (int k = 0; k < inner; k++) {
+                double factor = a[i * inner + k];
+                int bRow = k * columns;
+                for (int j = 0; j < columns; j++) {
+                    result[row + j] += factor * b[bRow + j];
+                }
+            }
+        }
+    }
+
+    // result (columns by rows) = the transpose of a (rows by columns), result must not be a
+    static void transpose(double[] a, int rows, int columns, double[] result) {
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                result[j * rows + i] = a[i * columns + j];
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.util.Arrays;
+
+/*
+ MAT statements of Dartmouth BASIC, operations on whole DIM arrays.
+
+   MAT A = B           copy
+   MAT A = B + C       sum element by element, B - C the difference
+   MAT A = (K) * B     every element times the value of K
+   MAT A = B * C       matrix product
+   MAT A = TRN(B)      transpose
+   MAT A = ZER         all elements 0, CON all elements 1
+
+ Unlike Dartmouth BASIC, the operations include the elements of index 0,
+ as DIM arrays here start at 0. A one-dimensional array is a matrix with
+ one column. MAT does not redimension: the target must already have the
+ size of the result, which is checked when the statement runs. The loops
+ themselves are in MatKernels.
+ */
+final class MatStatement extends Statement {
+    enum Operation {
+        COPY,
+        ADD,
+        SUBTRACT,
+        SCALE,
+        MULTIPLY,
+        TRANSPOSE,
+        ZER,
+        CON
+    }
+
+    final Operation operation;
+    // the target, then the operands of the operation, by array slot
+    final int[] slots;
+    final String[] names;
+    // the factor of SCALE, null for the other operations
+    final BasicExpression factor;
+    final int line;
+
+    MatStatement(Operation operation, int[] slots, String[] names, BasicExpression factor, int line) {
+        this.operation = operation;
+        this.slots = slots;
+        this.names = names;
+        this.factor = factor;
+        this.line = line;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        BasicArray target = array(context, 0);
+        MatKernels kernels = MatKernels.of(context.options);
+        switch (operation) {
+            case ZER:
+                Arrays.fill(target.values, 0.0);
+                break;
+            case CON:
+                Arrays.fill(target.values, 1.0);
+                break;
+            case COPY: {
+                BasicArray source = sameSize(target, array(context, 1));
+                System.arraycopy(source.values, 0, target.values, 0, source.values.length);
+                break;
+            }
+            case ADD:
+                kernels.add(sameSize(target, array(context, 1)).values, sameSize(target, array(context, 2)).values,
+                        target.values);
+                break;
+            case SUBTRACT:
+                kernels.subtract(sameSize(target, array(context, 1)).values,
+                        sameSize(target, array(context, 2)).values, target.values);
+                break;
+            case SCALE: {
+                double value = factor.evalDouble(context);
+                kernels.scale(value, sameSize(target, array(context, 1)).values, target.values);
+                break;
+            }
+            case MULTIPLY: {
+                BasicArray left = array(context, 1);
+                BasicArray right = array(context, 2);
+                if (left.columns != right.rows) {
+                    throw new BasicRuntimeException(line, String.format("Cannot multiply %s by %s",
+                            left.declaration(), right.declaration()));
+                }
+                resultSize(target, left.rows, right.columns);
+                // the product reads its operands while writing, MAT A = A * B needs a copy
+                double[] result = target == left || target == right ? new double[target.values.length] : target.values;
+                kernels.multiply(left.values, right.values, result, left.rows, left.columns, right.columns);
+                if (result != target.values) {
+                    System.arraycopy(result, 0, target.values, 0, result.length);
+                }
+                break;
+            }
+            case TRANSPOSE: {
+                BasicArray source = array(context, 1);
+                resultSize(target, source.columns, source.rows);
+                double[] values = target == source ? source.values.clone() : source.values;
+                MatKernels.transpose(values, source.rows, source.columns, target.values);
+                break;
+            }
+        }
+    }
+
+    private BasicArray array(JBasicContext context, int operand) {
+        return BasicArray.of(context, slots[operand], names[operand], line);
+    }
+
+    private BasicArray sameSize(BasicArray target, BasicArray operand) {
+        if (target.rows != operand.rows || target.columns != operand.columns) {
+            throw new BasicRuntimeException(line, String.format("%s and %s differ in size",
+                    target.declaration(), operand.declaration()));
+        }
+        return operand;
+    }
+
+    private void resultSize(BasicArray target, int rows, int columns) {
+        if (target.rows != rows || target.columns != columns) {
+            throw new BasicRuntimeException(line, String.format("%s cannot hold a result of %d by %d elements",
+                    target.declaration(), rows, columns));
+        }
+    }
+}
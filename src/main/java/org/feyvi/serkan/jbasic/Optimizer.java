@@ -0,0 +1,222 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.util.ArrayList;
+
+/*
+ Optimization pass over a linked program.
+
+ - Constant subexpressions are evaluated once, at parse time.
+ - A variable assigned exactly once, by a LET with a constant value that
+   every run reaches before any jump (like L = 100 at the top of a program),
+   is replaced by its value in all later statements. The LET itself stays,
+   so the variable still holds the value.
+ - x ^ 2 becomes x * x for variables, and x ^ 1, x * 1, 1 * x, x / 1 and
+   x - 0 become x.
+
+ Every rewrite gives bit-for-bit the same results as the original tree.
+ Statements are copied, the input program is not modified.
+ */
+final class Optimizer {
+    private final boolean[] known;
+    private final double[] values;
+    private final int[] assignments;
+
+    private Optimizer(int varCount) {
+        this.known = new boolean[varCount];
+        this.values = new double[varCount];
+        this.assignments = new int[varCount];
+    }
+
+    static Statement[] optimize(Statement[] program, int varCount) {
+        return new Optimizer(varCount).run(program);
+    }
+
+    private Statement[] run(Statement[] program) {
+        for (Statement statement : program) {
+            countAssignments(statement);
+        }
+        Statement[] result = new Statement[program.length];
+        // statements before the first jump or jump target run exactly in order on every run
+        boolean straightLine = true;
+        boolean[] targets = jumpTargets(program);
+        for (int i = 0; i < program.length; i++) {
+            straightLine &= !targets[i] || i == 0;
+            Statement statement = optimize(program[i]);
+            result[i] = statement;
+            if (straightLine && statement instanceof LetStatement) {
+                LetStatement let = (LetStatement) statement;
+                if (assignments[let.slot] == 1 && isConstant(let.expr)) {
+                    known[let.slot] = true;
+                    values[let.slot] = let.expr.value;
+                }
+            }
+            straightLine &= isStraightLine(statement);
+        }
+        return result;
+    }
+
+    private Statement optimize(Statement statement) {
+        if (statement instanceof LetStatement) {
+            LetStatement let = (LetStatement) statement;
+            return new LetStatement(let.slot, fold(let.expr));
+        } else if (statement instanceof PrintStatement) {
+            ArrayList<BasicExpression> expressions = new ArrayList<>();
+            for (BasicExpression expr : ((PrintStatement) statement).expressions) {
+                expressions.add(fold(expr));
+            }
+            return new PrintStatement(expressions);
+        } else if (statement instanceof ForStatement) {
+            ForStatement forStatement = (ForStatement) statement;
+            BasicExpression step = forStatement.step == null ? null : fold(forStatement.step);
+            ForStatement copy;
+            if (forStatement instanceof ParallelForStatement) {
+                ParallelForStatement parallel = (ParallelForStatement) forStatement;
+                copy = new ParallelForStatement(forStatement.getVarName(), forStatement.slot, forStatement.loopId,
+                        fold(forStatement.start), fold(forStatement.end), step, parallel.bodyStart, parallel.line);
+            } else {
+                copy = new ForStatement(forStatement.getVarName(), forStatement.slot, forStatement.loopId,
+                        fold(forStatement.start), fold(forStatement.end), step);
+            }
+            copy.setEndFor(forStatement.endFor);
+            return copy;
+        } else if (statement instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) statement;
+            return IfStatement.create(fold(ifStatement.condition), optimize(ifStatement.thenStatement));
+        } else if (statement instanceof ScreenStatement) {
+            return new ScreenStatement(fold(((ScreenStatement) statement).mode));
+        } else if (statement instanceof PlotStatement) {
+            PlotStatement plot = (PlotStatement) statement;
+            return new PlotStatement(fold(plot.x), fold(plot.y), fold(plot.c));
+        } else if (statement instanceof ArrayLetStatement) {
+            ArrayLetStatement let = (ArrayLetStatement) statement;
+            return new ArrayLetStatement(foldElement(let.element), fold(let.expr));
+        } else if (statement instanceof DimStatement) {
+            DimStatement dim = (DimStatement) statement;
+            BasicExpression[] rows = new BasicExpression[dim.rows.length];
+            BasicExpression[] columns = new BasicExpression[dim.columns.length];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = fold(dim.rows[i]);
+                columns[i] = dim.columns[i] == null ? null : fold(dim.columns[i]);
+            }
+            return new DimStatement(dim.names, dim.slots, rows, columns, dim.line);
+        }
+        return statement;
+    }
+
+    BasicExpression fold(BasicExpression expr) {
+        if (expr instanceof VariableExpression) {
+            int slot = ((VariableExpression) expr).slot;
+            return known[slot] ? new BasicExpression(values[slot]) : expr;
+        } else if (expr instanceof NegNode) {
+            BasicExpression operand = fold(((NegNode) expr).operand);
+            return isConstant(operand) ? new BasicExpression(-operand.value) : new NegNode(operand);
+        } else if (expr instanceof NotNode) {
+            BasicExpression operand = fold(((NotNode) expr).operand);
+            NotNode folded = new NotNode(operand);
+            return isConstant(operand) ? new BasicExpression(folded.evalDouble(null)) : folded;
+        } else if (expr instanceof BinaryNode) {
+            BinaryNode node = (BinaryNode) expr;
+            BinaryNode folded = node.with(fold(node.left), fold(node.right));
+            if (isConstant(folded.left) && isConstant(folded.right)) {
+                return new BasicExpression(folded.evalDouble(null));
+            }
+            return simplify(folded);
+        } else if (expr instanceof ArrayExpression) {
+            return foldElement((ArrayExpression) expr);
+        } else if (expr instanceof BuiltinCall) {
+            BuiltinCall call = (BuiltinCall) expr;
+            BuiltinCall folded = call.with(fold(call.param));
+            return isConstant(folded.param) ? new BasicExpression(folded.evalDouble(null)) : folded;
+        }
+        return expr;
+    }
+
+    private ArrayExpression foldElement(ArrayExpression element) {
+        return element.with(fold(element.row), element.column == null ? null : fold(element.column));
+    }
+
+    private static BasicExpression simplify(BinaryNode node) {
+        if (node instanceof PowNode) {
+            if (isConstant(node.right, 2) && node.left instanceof VariableExpression) {
+                return new MulNode(node.left, node.left);
+            } else if (isConstant(node.right, 1)) {
+                return node.left;
+            }
+        } else if (node instanceof MulNode) {
+            if (isConstant(node.right, 1)) {
+                return node.left;
+            } else if (isConstant(node.left, 1)) {
+                return node.right;
+            }
+        } else if (node instanceof DivNode && isConstant(node.right, 1)) {
+            return node.left;
+        } else if (node instanceof SubNode && isConstant(node.right, 0)) {
+            // x + 0 is not rewritten: -0.0 + 0 is 0.0
+            return node.left;
+        }
+        return node;
+    }
+
+    static boolean isConstant(BasicExpression expr) {
+        return expr != null && expr.getClass() == BasicExpression.class;
+    }
+
+    private static boolean isConstant(BasicExpression expr, double value) {
+        return isConstant(expr) && expr.value == value;
+    }
+
+    // statements that never change the counter
+    static boolean isStraightLine(Statement statement) {
+        return statement instanceof LetStatement || statement instanceof PrintStatement
+                || statement instanceof ScreenStatement || statement instanceof PlotStatement
+                || statement instanceof ArrayLetStatement || statement instanceof DimStatement;
+    }
+
+    // the statements that can be reached other than from the statement before them, by index
+    static boolean[] jumpTargets(Statement[] program) {
+        boolean[] targets = new boolean[program.length + 1];
+        for (int i = 0; i < program.length; i++) {
+            markTargets(program[i], targets, i);
+        }
+        return targets;
+    }
+
+    private static void markTargets(Statement statement, boolean[] targets, int index) {
+        if (statement instanceof GosubStatement) {
+            // RETURN continues after the GOSUB
+            mark(targets, ((GosubStatement) statement).target);
+            mark(targets, index + 1);
+        } else if (statement instanceof GotoStatement) {
+            mark(targets, ((GotoStatement) statement).target);
+        } else if (statement instanceof ForStatement) {
+            mark(targets, ((ForStatement) statement).endFor);
+        } else if (statement instanceof NextStatement) {
+            mark(targets, ((NextStatement) statement).bodyStart);
+        } else if (statement instanceof IfStatement) {
+            markTargets(((IfStatement) statement).thenStatement, targets, index);
+        }
+    }
+
+    private static void mark(boolean[] targets, int target) {
+        if (target >= 0 && target < targets.length) {
+            targets[target] = true;
+        }
+    }
+
+    private void countAssignments(Statement statement) {
+        if (statement instanceof LetStatement) {
+            assignments[((LetStatement) statement).slot]++;
+        } else if (statement instanceof ForStatement) {
+            assignments[((ForStatement) statement).slot]++;
+        } else if (statement instanceof NextStatement) {
+            assignments[((NextStatement) statement).slot]++;
+        } else if (statement instanceof IfStatement) {
+            countAssignments(((IfStatement) statement).thenStatement);
+        }
+    }
+}
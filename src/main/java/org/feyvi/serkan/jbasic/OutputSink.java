@@ -0,0 +1,195 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Destination of PRINT output
+abstract class OutputSink {
+    abstract void println(double value);
+
+    // writes out everything printed so far
+    abstract void flush();
+}
+
+// Prints straight to a stream, one println per value
+final class StreamSink extends OutputSink {
+    private final PrintStream out;
+
+    StreamSink(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    void println(double value) {
+        out.println(value);
+    }
+
+    @Override
+    void flush() {
+        out.flush();
+    }
+}
+
+/*
+ Formats values into a reusable buffer and writes it to a channel in large
+ chunks: when the buffer is full, when the oldest unwritten line is older
+ than the flush interval, or when flush() is called. Numbers are formatted
+ exactly like PrintStream.println(double) does.
+
+ The interval is kept by a shared timer thread, not by the next PRINT, so
+ a program that prints and then computes silently still shows its output.
+ That thread writes the buffer too, which is why println and flush lock.
+ A write that fails on the timer is thrown by the next println or flush.
+ A write that blocks there, e.g. on a full pipe, holds the lock: PRINT of
+ this program waits for it, and so do the timed flushes of all other
+ sinks, as they share the one timer thread.
+ */
+final class ChannelSink extends OutputSink {
+    // longest Double.toString result plus a line separator
+    private static final int MAX_LINE = 32;
+
+    private final WritableByteChannel channel;
+    private final Flushable target;
+    private final ByteBuffer buffer;
+    private final long flushIntervalNanos;
+    private final StringBuilder text = new StringBuilder(MAX_LINE);
+    private final String lineSeparator = System.lineSeparator();
+    private long firstPending;
+    // a flush of the pending lines is scheduled on the timer
+    private boolean timerSet;
+    // the error of a write on the timer, thrown by the next println or flush
+    private IOException timerFailure;
+
+    // one daemon thread for the flush intervals of all sinks
+    private static final class Timer {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jbasic-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // target, if given, is flushed after the buffer was written to the channel
+    ChannelSink(WritableByteChannel channel, Flushable target, int bufferSize, long flushIntervalMillis) {
+        this.channel = channel;
+        this.target = target;
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, MAX_LINE));
+        this.flushIntervalNanos = flushIntervalMillis * 1_000_000L;
+    }
+
+    @Override
+    synchronized void println(double value) {
+        throwTimerFailure();
+        if (buffer.remaining() < MAX_LINE) {
+            writeBuffer();
+        }
+        if (buffer.position() == 0 && flushIntervalNanos > 0) {
+            firstPending = System.nanoTime();
+            if (!timerSet) {
+                timerSet = true;
+                Timer.EXECUTOR.schedule(this::flushIfDue, flushIntervalNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        text.setLength(0);
+        text.append(value).append(lineSeparator);
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    // runs on the timer: writes the pending lines once the oldest is due, or waits until it is
+    private synchronized void flushIfDue() {
+        timerSet = false;
+        if (buffer.position() == 0) {
+            return;
+        }
+        long due = firstPending + flushIntervalNanos - System.nanoTime();
+        if (due > 0) {
+            timerSet = true;
+            Timer.EXECUTOR.schedule(this::flushIfDue, due, TimeUnit.NANOSECONDS);
+            return;
+        }
+        try {
+            flush();
+        } catch (UncheckedIOException e) {
+            timerFailure = e.getCause();
+        }
+    }
+
+    private void throwTimerFailure() {
+        if (timerFailure != null) {
+            IOException failure = timerFailure;
+            timerFailure = null;
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    @Override
+    synchronized void flush() {
+        throwTimerFailure();
+        writeBuffer();
+        if (target != null) {
+            try {
+                target.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            buffer.clear();
+        }
+    }
+}
+
+/*
+ Keeps printed values in memory until they are replayed into another
+ sink. Every worker of a PARALLEL FOR prints into one of these, and the
+ loop replays them in iteration order, so the output is the same as
+ for a sequential FOR.
+ */
+final class RecordingSink extends OutputSink {
+    private double[] values = new double[16];
+    private int size;
+
+    @Override
+    void println(double value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    @Override
+    void flush() {
+        // kept until replayed
+    }
+
+    void replay(OutputSink target) {
+        for (int i = 0; i < size; i++) {
+            target.println(values[i]);
+        }
+    }
+}
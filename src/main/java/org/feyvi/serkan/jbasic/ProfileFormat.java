@@ -0,0 +1,18 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ File formats for the profiler report.
+
+ TEXT is a table sorted by time, for reading. JSON and CSV list the same
+ statements with their raw counts and nanoseconds, for tools.
+ */
+public enum ProfileFormat {
+    TEXT,
+    JSON,
+    CSV
+}
@@ -0,0 +1,226 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ Execution counts and time per statement of one run.
+
+ The counters are filled by the instrumented interpreter loop in JBasic,
+ which takes one System.nanoTime() per statement and charges the time
+ since the previous one to the statement that just ran. A statement is
+ one source line, so the report is per line and label. Time spent in the
+ loop itself is included; with a few nanoseconds per statement it only
+ matters for the cheapest statements.
+
+ The arrays are written by the running thread only. JMX readers on other
+ threads may see slightly stale values, which is fine for monitoring.
+ */
+final class Profiler implements ProfilerMBean {
+    private static final AtomicInteger ids = new AtomicInteger();
+    private static final int HOT_SPOTS = 10;
+
+    private final String[] labels;
+    private final String[] sources;
+    private final int[] lines;
+    final long[] counts;
+    final long[] nanos;
+    private ObjectName objectName;
+
+    Profiler(String[] labels, String[] sources, int[] lines) {
+        this.labels = labels;
+        this.sources = sources;
+        this.lines = lines;
+        this.counts = new long[labels.length];
+        this.nanos = new long[labels.length];
+    }
+
+    long getCount(int statement) {
+        return counts[statement];
+    }
+
+    long getNanos(int statement) {
+        return nanos[statement];
+    }
+
+    @Override
+    public long getExecutedStatements() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalNanos() {
+        long total = 0;
+        for (long time : nanos) {
+            total += time;
+        }
+        return total;
+    }
+
+    @Override
+    public String[] getHotSpots() {
+        List<Integer> order = sortedByTime();
+        String[] hotSpots = new String[Math.min(HOT_SPOTS, order.size())];
+        for (int i = 0; i < hotSpots.length; i++) {
+            int statement = order.get(i);
+            hotSpots[i] = String.format(Locale.ROOT, "%s: %d, %.3f ms, %s", labels[statement],
+                    counts[statement], nanos[statement] / 1e6, sources[statement]);
+        }
+        return hotSpots;
+    }
+
+    @Override
+    public String getReport() {
+        return report(ProfileFormat.TEXT);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+            nanos[i] = 0;
+        }
+    }
+
+    // executed statements, most time first
+    private List<Integer> sortedByTime() {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                order.add(i);
+            }
+        }
+        order.sort((a, b) -> Long.compare(nanos[b], nanos[a]));
+        return order;
+    }
+
+    String report(ProfileFormat format) {
+        switch (format) {
+            case JSON:
+                return jsonReport();
+            case CSV:
+                return csvReport();
+            default:
+                return textReport();
+        }
+    }
+
+    private String textReport() {
+        long total = Math.max(getTotalNanos(), 1);
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "Profile: %d statements executed in %.3f ms%n",
+                getExecutedStatements(), getTotalNanos() / 1e6));
+        report.append(String.format("%12s %7s %12s  %-8s %s%n", "ms", "%", "count", "label", "statement"));
+        for (int statement : sortedByTime()) {
+            report.append(String.format(Locale.ROOT, "%12.3f %6.2f%% %12d  %-8s %s%n", nanos[statement] / 1e6,
+                    100.0 * nanos[statement] / total, counts[statement], labels[statement], sources[statement]));
+        }
+        return report.toString();
+    }
+
+    private String jsonReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("{\"executedStatements\":").append(getExecutedStatements())
+                .append(",\"totalNanos\":").append(getTotalNanos())
+                .append(",\"statements\":[");
+        List<Integer> order = sortedByTime();
+        for (int i = 0; i < order.size(); i++) {
+            int statement = order.get(i);
+            report.append(i == 0 ? "\n" : ",\n")
+                    .append("{\"index\":").append(statement)
+                    .append(",\"line\":").append(lines[statement])
+                    .append(",\"label\":").append(jsonString(labels[statement]))
+                    .append(",\"count\":").append(counts[statement])
+                    .append(",\"nanos\":").append(nanos[statement])
+                    .append(",\"source\":").append(jsonString(sources[statement]))
+                    .append('}');
+        }
+        return report.append("\n]}\n").toString();
+    }
+
+    private String csvReport() {
+        StringBuilder report = new StringBuilder("index,line,label,count,nanos,source\n");
+        for (int statement : sortedByTime()) {
+            report.append(statement).append(',')
+                    .append(lines[statement]).append(',')
+                    .append(csvField(labels[statement])).append(',')
+                    .append(counts[statement]).append(',')
+                    .append(nanos[statement]).append(',')
+                    .append(csvField(sources[statement])).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    void write(Path output, ProfileFormat format) {
+        try {
+            Files.write(output, report(format).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            objectName = new ObjectName("org.feyvi.serkan.jbasic:type=Profiler,id=" + ids.incrementAndGet());
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            // profiling still works without JMX, the report is written at the end
+            objectName = null;
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // already gone
+        }
+        objectName = null;
+    }
+}
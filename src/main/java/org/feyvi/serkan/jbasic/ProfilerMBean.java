@@ -0,0 +1,23 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ JMX view of a profiled run, registered as
+ org.feyvi.serkan.jbasic:type=Profiler,id=<n> while the run is in progress.
+ */
+public interface ProfilerMBean {
+    long getExecutedStatements();
+
+    long getTotalNanos();
+
+    // the ten statements with the most time, as "label: count, ms, source"
+    String[] getHotSpots();
+
+    String getReport();
+
+    void reset();
+}
@@ -0,0 +1,152 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ Directory of parsed programs, one file per source, so running the same
+ source again skips lexing, parsing, linking and the optimizer.
+
+ Files are named by the SHA-256 of the codec format, the version of the
+ implementation, the options that change the parse result and the source
+ itself. An edited source or a new build of the parser or optimizer gets a
+ new name, so entries never need to be invalidated; stale ones can simply
+ be deleted. Entries are written to a temporary file and moved into
+ place, so concurrent runs never see half a file, and read through a
+ memory mapping. The cache is best effort: a missing, unreadable or
+ corrupt entry just means the source is parsed again.
+ */
+final class ProgramCache {
+    private static final String SUFFIX = ".jbc";
+
+    private ProgramCache() {
+    }
+
+    // looked up on the first use of the cache only
+    private static final class Version {
+        // null if unknown, then nothing is cached
+        static final String VALUE = implementationVersion();
+    }
+
+    /*
+     The jar built by gradle carries a digest of the sources as its
+     Implementation-Version. Classes run from a directory, as in tests and
+     IDEs, or from a jar without one are stamped by the size and time of
+     their class files, so every rebuild counts as a new version.
+     */
+    private static String implementationVersion() {
+        String version = ProgramCache.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+        try {
+            Path location = Paths.get(ProgramCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (!Files.isDirectory(location)) {
+                return String.format("jar %d %d", Files.size(location), Files.getLastModifiedTime(location).toMillis());
+            }
+            StringBuilder stamp = new StringBuilder("classes");
+            Path classes = location.resolve(ProgramCache.class.getPackageName().replace('.', '/'));
+            try (Stream<Path> files = Files.list(classes)) {
+                for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                    stamp.append(String.format(" %s %d %d", file.getFileName(), Files.size(file),
+                            Files.getLastModifiedTime(file).toMillis()));
+                }
+            }
+            return stamp.toString();
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static String version() {
+        return Version.VALUE;
+    }
+
+    static Path entry(Path directory, List<String> source, JBasicOptions options) {
+        return entry(directory, Version.VALUE, source, options);
+    }
+
+    static Path entry(Path directory, String version, List<String> source, JBasicOptions options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(String.format("jbasic %d %s %b\n", ProgramCodec.FORMAT, version, options.optimize)
+                .getBytes(StandardCharsets.UTF_8));
+        for (String line : source) {
+            digest.update(line.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.append(SUFFIX).toString());
+    }
+
+    // the cached program of the source, or null if there is no usable entry
+    static ProgramCodec.Image load(Path directory, List<String> source, JBasicOptions options) {
+        if (version() == null) {
+            return null;
+        }
+        Path entry = entry(directory, source, options);
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return ProgramCodec.decode(buffer);
+        } catch (IOException | IllegalArgumentException e) {
+            // missing, unreadable or corrupt, store() replaces it after the source is parsed
+            return null;
+        }
+    }
+
+    static void store(Path directory, List<String> source, JBasicOptions options, ProgramCodec.Image image) {
+        if (version() == null) {
+            return;
+        }
+        byte[] data;
+        try {
+            data = ProgramCodec.encode(image);
+        } catch (IllegalArgumentException e) {
+            // a node the codec does not know, the program is parsed on every run
+            return;
+        }
+        Path entry = entry(directory, source, options);
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, "jbasic", ".tmp");
+            Files.write(temporary, data);
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temporary = null;
+        } catch (IOException e) {
+            // read-only or full directory, the next run parses again
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ Compact binary form of a parsed, linked and optimized program.
+
+ Layout: magic, format version, variable names, array names, loop count,
+ then per statement its label, source line and node tree. Nodes are
+ written in prefix order, each starting with a one byte tag. Numbers are
+ big-endian, strings are UTF-8 with an int length.
+
+ Bump FORMAT whenever a node class or its encoding changes, and whenever
+ the parser or the Optimizer builds a different tree from the same source,
+ e.g. for a new rewrite rule; entries of other versions are ignored by
+ ProgramCache. The cache also keys entries by the version of the build,
+ which catches a forgotten bump only once the build is rebuilt.
+ */
+final class ProgramCodec {
+    static final int MAGIC = 0x4A424331; // "JBC1"
+    static final int FORMAT = 4;
+
+    // statements
+    private static final byte NOP = 1;
+    private static final byte LET = 2;
+    private static final byte ARRAY_LET = 3;
+    private static final byte DIM = 4;
+    private static final byte GOTO = 5;
+    private static final byte PRINT = 6;
+    private static final byte FOR = 7;
+    private static final byte PARALLEL_FOR = 8;
+    private static final byte NEXT = 9;
+    private static final byte IF = 10;
+    private static final byte SCREEN = 11;
+    private static final byte PLOT = 12;
+    private static final byte GOSUB = 13;
+    private static final byte RETURN = 14;
+    private static final byte MAT = 15;
+    // expressions
+    private static final byte CONSTANT = 20;
+    private static final byte VARIABLE = 21;
+    private static final byte NEGATE = 22;
+    private static final byte BINARY = 23;
+    private static final byte BUILTIN = 24;
+    private static final byte ARRAY = 25;
+    private static final byte NULL = 26;
+    private static final byte NOT = 27;
+
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "^", "=", "<>", "<", "<=", ">", ">=", "AND", "OR"};
+    private static final String[] BUILTINS = {"ABS", "SQR", "EXP", "SIN", "COS", "ROUND", "SGN", "CEIL"};
+    private static final Map<Class<?>, Byte> operatorCodes = new HashMap<>();
+    private static final Map<Class<?>, Byte> builtinCodes = new HashMap<>();
+
+    static {
+        for (int i = 0; i < OPERATORS.length; i++) {
+            operatorCodes.put(BinaryNode.create(OPERATORS[i], null, null).getClass(), (byte) i);
+        }
+        for (int i = 0; i < BUILTINS.length; i++) {
+            builtinCodes.put(BuiltinCall.create(BUILTINS[i], null).getClass(), (byte) i);
+        }
+    }
+
+    // everything JBasic needs to run a program without parsing it
+    static final class Image {
+        final List<String> variables;
+        final List<String> arrays;
+        final int loopCount;
+        final Statement[] program;
+        final String[] labels;
+        final int[] lines;
+
+        Image(List<String> variables, List<String> arrays, int loopCount, Statement[] program, String[] labels,
+              int[] lines) {
+            this.variables = variables;
+            this.arrays = arrays;
+            this.loopCount = loopCount;
+            this.program = program;
+            this.labels = labels;
+            this.lines = lines;
+        }
+    }
+
+    private ProgramCodec() {
+    }
+
+    static byte[] encode(Image image) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            writeNames(out, image.variables);
+            writeNames(out, image.arrays);
+            out.writeInt(image.loopCount);
+            out.writeInt(image.program.length);
+            for (int i = 0; i < image.program.length; i++) {
+                writeString(out, image.labels[i]);
+                out.writeInt(image.lines[i]);
+                writeStatement(out, image.program[i]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // throws IllegalArgumentException if the data is not a program of this format
+    static Image decode(ByteBuffer in) {
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT) {
+                throw new IllegalArgumentException("Not a program of format " + FORMAT);
+            }
+            List<String> variables = readNames(in);
+            List<String> arrays = readNames(in);
+            int loopCount = in.getInt();
+            int count = in.getInt();
+            Statement[] program = new Statement[count];
+            String[] labels = new String[count];
+            int[] lines = new int[count];
+            for (int i = 0; i < count; i++) {
+                labels[i] = readString(in);
+                lines[i] = in.getInt();
+                program[i] = readStatement(in);
+            }
+            if (in.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing data after program");
+            }
+            return new Image(variables, arrays, loopCount, program, labels, lines);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, NegativeArraySizeException, ... of a truncated or foreign file
+            throw e instanceof IllegalArgumentException ? e : new IllegalArgumentException("Corrupt program", e);
+        }
+    }
+
+    private static void writeStatement(DataOutputStream out, Statement statement) throws IOException {
+        if (statement instanceof LetStatement) {
+            LetStatement let = (LetStatement) statement;
+            out.writeByte(LET);
+            out.writeInt(let.slot);
+            writeExpression(out, let.expr);
+        } else if (statement instanceof ArrayLetStatement) {
+            ArrayLetStatement let = (ArrayLetStatement) statement;
+            out.writeByte(ARRAY_LET);
+            writeExpression(out, let.element);
+            writeExpression(out, let.expr);
+        } else if (statement instanceof DimStatement) {
+            DimStatement dim = (DimStatement) statement;
+            out.writeByte(DIM);
+            out.writeInt(dim.line);
+            out.writeInt(dim.slots.length);
+            for (int i = 0; i < dim.slots.length; i++) {
+                writeString(out, dim.names[i]);
+                out.writeInt(dim.slots[i]);
+                writeExpression(out, dim.rows[i]);
+                writeExpression(out, dim.columns[i]);
+            }
+        } else if (statement instanceof GosubStatement) {
+            GosubStatement gosub = (GosubStatement) statement;
+            out.writeByte(GOSUB);
+            writeString(out, gosub.label);
+            out.writeInt(gosub.line);
+            out.writeInt(gosub.target);
+        } else if (statement instanceof ReturnStatement) {
+            out.writeByte(RETURN);
+            out.writeInt(((ReturnStatement) statement).line);
+        } else if (statement instanceof GotoStatement) {
+            GotoStatement jump = (GotoStatement) statement;
+            out.writeByte(GOTO);
+            writeString(out, jump.label == null ? "" : jump.label);
+            out.writeInt(jump.target);
+        } else if (statement instanceof PrintStatement) {
+            List<BasicExpression> expressions = ((PrintStatement) statement).expressions;
+            out.writeByte(PRINT);
+            out.writeInt(expressions.size());
+            for (BasicExpression expr : expressions) {
+                writeExpression(out, expr);
+            }
+        } else if (statement instanceof ForStatement) {
+            ForStatement forStatement = (ForStatement) statement;
+            boolean parallel = statement instanceof ParallelForStatement;
+            out.writeByte(parallel ? PARALLEL_FOR : FOR);
+            writeString(out, forStatement.getVarName());
+            out.writeInt(forStatement.slot);
+            out.writeInt(forStatement.loopId);
+            writeExpression(out, forStatement.start);
+            writeExpression(out, forStatement.end);
+            writeExpression(out, forStatement.step);
+            out.writeInt(forStatement.endFor);
+            if (parallel) {
+                out.writeInt(((ParallelForStatement) statement).bodyStart);
+                out.writeInt(((ParallelForStatement) statement).line);
+            }
+        } else if (statement instanceof NextStatement) {
+            NextStatement next = (NextStatement) statement;
+            out.writeByte(NEXT);
+            out.writeInt(next.slot);
+            out.writeInt(next.loopId);
+            out.writeInt(next.bodyStart);
+        } else if (statement instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) statement;
+            out.writeByte(IF);
+            writeExpression(out, ifStatement.condition);
+            writeStatement(out, ifStatement.thenStatement);
+        } else if (statement instanceof ScreenStatement) {
+            out.writeByte(SCREEN);
+            writeExpression(out, ((ScreenStatement) statement).mode);
+        } else if (statement instanceof PlotStatement) {
+            PlotStatement plot = (PlotStatement) statement;
+            out.writeByte(PLOT);
+            writeExpression(out, plot.x);
+            writeExpression(out, plot.y);
+            writeExpression(out, plot.c);
+        } else if (statement instanceof MatStatement) {
+            MatStatement mat = (MatStatement) statement;
+            out.writeByte(MAT);
+            out.writeByte(mat.operation.ordinal());
+            out.writeInt(mat.line);
+            out.writeInt(mat.slots.length);
+            for (int i = 0; i < mat.slots.length; i++) {
+                writeString(out, mat.names[i]);
+                out.writeInt(mat.slots[i]);
+            }
+            writeExpression(out, mat.factor);
+        } else if (statement.getClass() == Statement.class) {
+            out.writeByte(NOP);
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + statement.getClass().getSimpleName());
+        }
+    }
+
+    private static Statement readStatement(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case NOP:
+                return new Statement();
+            case LET:
+                return new LetStatement(in.getInt(), readExpression(in));
+            case ARRAY_LET:
+                return new ArrayLetStatement((ArrayExpression) readExpression(in), readExpression(in));
+            case DIM: {
+                int line = in.getInt();
+                int count = in.getInt();
+                String[] names = new String[count];
+                int[] slots = new int[count];
+                BasicExpression[] rows = new BasicExpression[count];
+                BasicExpression[] columns = new BasicExpression[count];
+                for (int i = 0; i < count; i++) {
+                    names[i] = readString(in);
+                    slots[i] = in.getInt();
+                    rows[i] = readExpression(in);
+                    columns[i] = readExpression(in);
+                }
+                return new DimStatement(names, slots, rows, columns, line);
+            }
+            case GOTO: {
+                String label = readString(in);
+                GotoStatement jump = label.isEmpty() ? new GotoStatement(-1) : new GotoStatement(label);
+                jump.target = in.getInt();
+                return jump;
+            }
+            case GOSUB: {
+                String label = readString(in);
+                GosubStatement gosub = new GosubStatement(label, in.getInt());
+                gosub.target = in.getInt();
+                return gosub;
+            }
+            case RETURN:
+                return new ReturnStatement(in.getInt());
+            case PRINT: {
+                int count = in.getInt();
+                ArrayList<BasicExpression> expressions = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    expressions.add(readExpression(in));
+                }
+                return new PrintStatement(expressions);
+            }
+            case FOR:
+            case PARALLEL_FOR: {
+                String varName = readString(in);
+                int slot = in.getInt();
+                int loopId = in.getInt();
+                BasicExpression start = readExpression(in);
+                BasicExpression end = readExpression(in);
+                BasicExpression step = readExpression(in);
+                int endFor = in.getInt();
+                ForStatement forStatement = tag == FOR
+                        ? new ForStatement(varName, slot, loopId, start, end, step)
+                        : new ParallelForStatement(varName, slot, loopId, start, end, step, in.getInt(), in.getInt());
+                forStatement.setEndFor(endFor);
+                return forStatement;
+            }
+            case NEXT:
+                return new NextStatement(in.getInt(), in.getInt(), in.getInt());
+            case IF:
+                return IfStatement.create(readExpression(in), readStatement(in));
+            case SCREEN:
+                return new ScreenStatement(readExpression(in));
+            case PLOT:
+                return new PlotStatement(readExpression(in), readExpression(in), readExpression(in));
+            case MAT: {
+                MatStatement.Operation operation = MatStatement.Operation.values()[in.get()];
+                int line = in.getInt();
+                int count = in.getInt();
+                String[] names = new String[count];
+                int[] slots = new int[count];
+                for (int i = 0; i < count; i++) {
+                    names[i] = readString(in);
+                    slots[i] = in.getInt();
+                }
+                return new MatStatement(operation, slots, names, readExpression(in), line);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown statement tag " + tag);
+        }
+    }
+
+    private static void writeExpression(DataOutputStream out, BasicExpression expr) throws IOException {
+        if (expr == null) {
+            out.writeByte(NULL);
+        } else if (expr instanceof VariableExpression) {
+            out.writeByte(VARIABLE);
+            out.writeInt(((VariableExpression) expr).slot);
+        } else if (expr instanceof ArrayExpression) {
+            ArrayExpression element = (ArrayExpression) expr;
+            out.writeByte(ARRAY);
+            writeString(out, element.name);
+            out.writeInt(element.slot);
+            out.writeInt(element.line);
+            writeExpression(out, element.row);
+            writeExpression(out, element.column);
+        } else if (expr instanceof NegNode) {
+            out.writeByte(NEGATE);
+            writeExpression(out, ((NegNode) expr).operand);
+        } else if (expr instanceof NotNode) {
+            out.writeByte(NOT);
+            writeExpression(out, ((NotNode) expr).operand);
+        } else if (expr instanceof BinaryNode) {
+            BinaryNode node = (BinaryNode) expr;
+            out.writeByte(BINARY);
+            out.writeByte(code(operatorCodes, node));
+            writeExpression(out, node.left);
+            writeExpression(out, node.right);
+        } else if (expr instanceof BuiltinCall) {
+            BuiltinCall call = (BuiltinCall) expr;
+            out.writeByte(BUILTIN);
+            out.writeByte(code(builtinCodes, call));
+            writeExpression(out, call.param);
+        } else if (expr.getClass() == BasicExpression.class) {
+            out.writeByte(CONSTANT);
+            out.writeDouble(expr.value);
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + expr.getClass().getSimpleName());
+        }
+    }
+
+    private static BasicExpression readExpression(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case CONSTANT:
+                return new BasicExpression(in.getDouble());
+            case VARIABLE:
+                return new VariableExpression(in.getInt());
+            case ARRAY: {
+                String name = readString(in);
+                int slot = in.getInt();
+                int line = in.getInt();
+                return new ArrayExpression(name, slot, readExpression(in), readExpression(in), line);
+            }
+            case NEGATE:
+                return new NegNode(readExpression(in));
+            case NOT:
+                return new NotNode(readExpression(in));
+            case BINARY: {
+                String operator = OPERATORS[in.get()];
+                return BinaryNode.create(operator, readExpression(in), readExpression(in));
+            }
+            case BUILTIN: {
+                String name = BUILTINS[in.get()];
+                return BuiltinCall.create(name, readExpression(in));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown expression tag " + tag);
+        }
+    }
+
+    private static byte code(Map<Class<?>, Byte> codes, Object node) {
+        Byte code = codes.get(node.getClass());
+        if (code == null) {
+            throw new IllegalArgumentException("Cannot encode " + node.getClass().getSimpleName());
+        }
+        return code;
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            writeString(out, name);
+        }
+    }
+
+    private static List<String> readNames(ByteBuffer in) {
+        int count = in.getInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(readString(in));
+        }
+        return names;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
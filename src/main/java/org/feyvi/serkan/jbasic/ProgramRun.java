@@ -0,0 +1,121 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/*
+ One program submitted to a JBasicScheduler: its status, captured output
+ and timing. completion() completes when the run has ended, whatever the
+ reason.
+ */
+public final class ProgramRun {
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        FINISHED,
+        // the program threw an error, see getError()
+        FAILED,
+        CANCELLED,
+        TIMED_OUT,
+        OUT_OF_BUDGET
+    }
+
+    final JBasic program;
+    final RunGuard guard;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final PrintStream stream = new PrintStream(output, true, StandardCharsets.UTF_8);
+    private final CompletableFuture<ProgramRun> completion = new CompletableFuture<>();
+    private final long submitted = System.nanoTime();
+    private volatile long started;
+    private volatile long ended;
+    private volatile Status status = Status.QUEUED;
+    private volatile RuntimeException error;
+    // whether the run got a virtual thread, to check the scheduler
+    volatile boolean virtualThread;
+
+    ProgramRun(JBasic program, RunGuard guard) {
+        this.program = program;
+        this.guard = guard;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    // everything the program printed so far
+    public String getOutput() {
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    // the error of a FAILED run, null otherwise
+    public RuntimeException getError() {
+        return error;
+    }
+
+    public long getExecutedStatements() {
+        return guard.executed;
+    }
+
+    // time from submission to the end of the run, or until now while it is queued or running
+    public Duration getLatency() {
+        long end = ended != 0 ? ended : System.nanoTime();
+        return Duration.ofNanos(end - submitted);
+    }
+
+    // time spent running, without the time in the queue
+    public Duration getRunTime() {
+        if (started == 0) {
+            return Duration.ZERO;
+        }
+        long end = ended != 0 ? ended : System.nanoTime();
+        return Duration.ofNanos(end - started);
+    }
+
+    public CompletableFuture<ProgramRun> completion() {
+        return completion;
+    }
+
+    // waits for the end of the run
+    public ProgramRun await() throws InterruptedException {
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // asks the program to stop, it ends with CANCELLED at its next limit check
+    public void cancel() {
+        guard.cancelled = true;
+    }
+
+    // false if the run was cancelled before it started
+    boolean start() {
+        started = System.nanoTime();
+        virtualThread = Thread.currentThread().isVirtual();
+        if (guard.cancelled) {
+            return false;
+        }
+        status = Status.RUNNING;
+        return true;
+    }
+
+    void stopClock() {
+        this.ended = System.nanoTime();
+    }
+
+    void end(Status status, RuntimeException error) {
+        this.error = error;
+        this.status = status;
+        completion.complete(this);
+    }
+}
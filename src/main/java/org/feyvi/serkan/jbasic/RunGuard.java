@@ -0,0 +1,60 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ Limits of a scheduled run: a budget of executed statements, a wall-clock
+ deadline and a cancellation flag. The guarded interpreter loop counts
+ every statement and calls check() every CHECK_INTERVAL statements, so a
+ stopped program ends within a few microseconds and the flag costs no
+ volatile read per statement.
+ */
+final class RunGuard {
+    static final int CHECK_INTERVAL = 1024;
+
+    // maximum number of statements, Long.MAX_VALUE for no limit
+    final long budget;
+    // System.nanoTime() deadline, Long.MAX_VALUE for no limit
+    final long deadline;
+    volatile boolean cancelled;
+    // statements executed so far, updated at every check and at the end of the run
+    volatile long executed;
+
+    RunGuard(long budget, long deadline) {
+        this.budget = budget;
+        this.deadline = deadline;
+    }
+
+    void check(long executedStatements) {
+        executed = executedStatements;
+        if (executedStatements >= budget) {
+            throw new ProgramStoppedException(ProgramRun.Status.OUT_OF_BUDGET);
+        }
+        checkStopped();
+    }
+
+    // cancellation and timeout only, for PARALLEL FOR workers that do not count against the budget
+    void checkStopped() {
+        if (cancelled) {
+            throw new ProgramStoppedException(ProgramRun.Status.CANCELLED);
+        }
+        if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+            throw new ProgramStoppedException(ProgramRun.Status.TIMED_OUT);
+        }
+    }
+}
+
+// thrown out of the run loop when a RunGuard limit is hit
+final class ProgramStoppedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final ProgramRun.Status status;
+
+    ProgramStoppedException(ProgramRun.Status status) {
+        super(status.toString(), null, false, false);
+        this.status = status;
+    }
+}
@@ -0,0 +1,17 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ File formats for headless SCREEN output.
+
+ PNG writes one image per frame. RAW appends every frame to one file as
+ 320x200 pixels of 8-bit R, G, B, row by row, without any header.
+ */
+public enum ScreenFormat {
+    PNG,
+    RAW
+}
@@ -0,0 +1,148 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ Loop counters and promotion events of a program run with Engine.TIERED.
+
+ The loops of a program are its FOR statements and the targets of its
+ backward GOTOs, numbered in program order. For every loop the
+ interpreter counts how often it is entered and how often it jumps back
+ to its start. The first loop to reach JBasicOptions.tierThreshold() in
+ total gets the program compiled on a background thread, and every run
+ continues compiled from its next loop entry or back edge on.
+
+ The loop counters are plain fields, written without synchronization
+ like the invocation counters of the JVM itself: concurrent runs of one
+ program may lose counts, which only delays the promotion.
+ */
+public final class TierMetrics {
+    private final String[] labels;
+    // loop number of every statement index, -1 if no loop is entered there
+    final int[] entryOf;
+    // loop number of every statement index, -1 if no loop jumps back there
+    final int[] backEdgeOf;
+    final long[] invocations;
+    final long[] backEdges;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final LongAdder switches = new LongAdder();
+    private volatile boolean promoted;
+    private volatile long compileNanos;
+
+    private TierMetrics(String[] labels, int[] entryOf, int[] backEdgeOf) {
+        this.labels = labels;
+        this.entryOf = entryOf;
+        this.backEdgeOf = backEdgeOf;
+        this.invocations = new long[labels.length];
+        this.backEdges = new long[labels.length];
+    }
+
+    // finds the loops of the program, statementLabels gives the label of every statement index
+    static TierMetrics of(Statement[] program, String[] statementLabels) {
+        int[] entryOf = new int[program.length + 1];
+        int[] backEdgeOf = new int[program.length + 1];
+        Arrays.fill(entryOf, -1);
+        Arrays.fill(backEdgeOf, -1);
+        List<String> labels = new ArrayList<>();
+        for (int i = 0; i < program.length; i++) {
+            if (program[i] instanceof ForStatement) {
+                // the NEXT jumps back to the statement after the FOR
+                entryOf[i] = labels.size();
+                backEdgeOf[i + 1] = labels.size();
+                labels.add(statementLabels[i]);
+            }
+        }
+        for (int i = 0; i < program.length; i++) {
+            int target = backwardTarget(program[i], i);
+            if (target >= 0 && backEdgeOf[target] < 0) {
+                // a GOTO back to a FOR statement counts for that loop
+                if (entryOf[target] < 0) {
+                    entryOf[target] = labels.size();
+                    labels.add(statementLabels[target]);
+                }
+                backEdgeOf[target] = entryOf[target];
+            }
+        }
+        return new TierMetrics(labels.toArray(new String[0]), entryOf, backEdgeOf);
+    }
+
+    // the target of a GOTO at or before its own statement, -1 for anything else
+    private static int backwardTarget(Statement statement, int index) {
+        if (statement instanceof IfStatement) {
+            statement = ((IfStatement) statement).thenStatement;
+        }
+        if (statement instanceof GotoStatement && !(statement instanceof GosubStatement)) {
+            int target = ((GotoStatement) statement).target;
+            return target >= 0 && target <= index ? target : -1;
+        }
+        return -1;
+    }
+
+    void promoting(int loop, long count) {
+        events.add(String.format("loop at %s reached %d entries and back edges, compiling", labels[loop], count));
+    }
+
+    void compiled(CompiledProgram program, long nanos) {
+        compileNanos = nanos;
+        if (program == null) {
+            events.add("program cannot be compiled, staying on the interpreter");
+        } else {
+            events.add(String.format("compiled in %.1f ms", nanos / 1e6));
+            promoted = true;
+        }
+    }
+
+    void switched() {
+        switches.increment();
+    }
+
+    public int getLoopCount() {
+        return labels.length;
+    }
+
+    // label of the line that starts the loop
+    public String getLoopLabel(int loop) {
+        return labels[loop];
+    }
+
+    // how often the loop was entered from above
+    public long getInvocations(int loop) {
+        return invocations[loop];
+    }
+
+    // how often the loop jumped back to its start
+    public long getBackEdges(int loop) {
+        return backEdges[loop];
+    }
+
+    // true once the compiled program is ready
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    public Duration getCompileTime() {
+        return Duration.ofNanos(compileNanos);
+    }
+
+    // runs that continued compiled after starting on the interpreter
+    public long getSwitches() {
+        return switches.sum();
+    }
+
+    // promotions and compilations, oldest first
+    public List<String> getEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ MatKernels on the Vector API, with the widest vectors of the CPU.
+ Elements past the last full vector are left to a scalar loop.
+
+ Only loaded by MatKernels when the module is present. Multiplying and
+ adding are separate lane operations, not fma, so the results round
+ exactly like the scalar kernels.
+ */
+final class VectorMatKernels extends MatKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    void add(double[] a, double[] b, double[] result) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(result.length); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).add(DoubleVector.fromArray(SPECIES, b, i)).intoArray(result, i);
+        }
+        for (; i < result.length; i++) {
+            result[i] = a[i] + b[i];
+        }
+    }
+
+    @Override
+    void subtract(double[] a, double[] b, double[] result) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(result.length); i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).sub(DoubleVector.fromArray(SPECIES, b, i)).intoArray(result, i);
+        }
+        for (; i < result.length; i++) {
+            result[i] = a[i] - b[i];
+        }
+    }
+
+    @Override
+    void scale(double factor, double[] a, double[] result) {
+        DoubleVector factors = DoubleVector.broadcast(SPECIES, factor);
+        int i = 0;
+        for (int upper = SPECIES.loopBound(result.length); i < upper; i += SPECIES.length()) {
+            factors.mul(DoubleVector.fromArray(SPECIES, a, i)).intoArray(result, i);
+        }
+        for (; i < result.length; i++) {
+            result[i] = factor * a[i];
+        }
+    }
+
+    @Override
+    void multiply(double[] a, double[] b, double[] result, int rows, int inner, int columns) {
+        int upper = SPECIES.loopBound(columns);
+        for (int i = 0; i < rows; i++) {
+            int row = i * columns;
+            for (int j = 0; j < columns; j++) {
+                result[row + j] = 0.0;
+            }
+            for (int k = 0; k < inner; k++) {
+                double factor = a[i * inner + k];
+                DoubleVector factors = DoubleVector.broadcast(SPECIES, factor);
+                int bRow = k * columns;
+                int j = 0;
+                for (; j < upper; j += SPECIES.length()) {
+                    DoubleVector sum = DoubleVector.fromArray(SPECIES, result, row + j);
+                    sum.add(factors.mul(DoubleVector.fromArray(SPECIES, b, bRow + j))).intoArray(result, row + j);
+                }
+                for (; j < columns; j++) {
+                    result[row + j] += factor * b[bRow + j];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.feyvi.serkan.jbasic.VmProgram.*;
+
+/*
+ Lowers a parsed program to the instruction stream of VmProgram.
+
+ Every expression is flattened into three address instructions. A
+ variable or constant operand is used in place, so LET X = X + 1 is a
+ single ADD from the register of X and the register of the constant
+ into the register of X. Intermediate results get temporary registers,
+ which are reused from one statement to the next.
+
+ The condition of IF becomes compare-and-jump instructions that skip the
+ THEN part, with AND, OR and NOT turned into control flow, so the right
+ operand of AND and OR is only evaluated when needed.
+
+ GOTO, NEXT and the exit of a FOR loop name statement indexes while the
+ code is emitted and are patched to code offsets at the end.
+ */
+final class VmCompiler {
+    private final Statement[] program;
+    private final int varCount;
+    private int[] code = new int[256];
+    private int size;
+    private final int[] lines;
+    // code offsets of the operands holding a statement index to patch into a code offset
+    private final List<Integer> jumps = new ArrayList<>();
+    private final List<Object> nodes = new ArrayList<>();
+    private final Map<Object, Integer> nodeIndexes = new IdentityHashMap<>();
+    // constant registers by the bits of their value, so 0.0 and -0.0 stay apart
+    private final Map<Long, Integer> constants = new HashMap<>();
+    private final List<Double> constantValues = new ArrayList<>();
+    private final Set<Integer> parallelLoops = new HashSet<>();
+    // temporaries in use by the expression being lowered, and the most ever used at once
+    private int temporaries;
+    private int maxTemporaries;
+
+    private VmCompiler(Statement[] program, SymbolTable symbols) {
+        this.program = program;
+        this.varCount = symbols.size();
+        this.lines = new int[program.length + 1];
+    }
+
+    static VmProgram compile(Statement[] program, SymbolTable symbols) {
+        return new VmCompiler(program, symbols).generate();
+    }
+
+    private VmProgram generate() {
+        for (Statement statement : program) {
+            if (statement instanceof ParallelForStatement) {
+                parallelLoops.add(((ParallelForStatement) statement).loopId);
+            }
+        }
+        for (int i = 0; i < program.length; i++) {
+            lines[i] = size;
+            generateStatement(program[i], i);
+        }
+        lines[program.length] = size;
+        emit(END);
+        for (int jump : jumps) {
+            code[jump] = lines[code[jump]];
+        }
+
+        // temporaries go after the constants, so they are numbered from here
+        int firstTemporary = varCount + constantValues.size();
+        double[] registers = new double[firstTemporary + maxTemporaries];
+        for (int i = 0; i < constantValues.size(); i++) {
+            registers[varCount + i] = constantValues.get(i);
+        }
+        for (int i = 0; i < size; i++) {
+            if (code[i] <= -2) {
+                // placeholder of a temporary, see temporary()
+                code[i] = firstTemporary - code[i] - 2;
+            }
+        }
+        return new VmProgram(Arrays.copyOf(code, size), lines, registers, varCount, nodes.toArray());
+    }
+
+    private void generateStatement(Statement statement, int index) {
+        temporaries = 0;
+        if (statement instanceof LetStatement) {
+            LetStatement let = (LetStatement) statement;
+            generateExpression(let.expr, let.slot);
+        } else if (statement instanceof ArrayLetStatement) {
+            ArrayLetStatement let = (ArrayLetStatement) statement;
+            int row = generateExpression(let.element.row, -1);
+            int column = let.element.column == null ? -1 : generateExpression(let.element.column, -1);
+            int value = generateExpression(let.expr, -1);
+            emit(ARRAY_STORE, node(let.element), row, column, value);
+        } else if (statement instanceof PrintStatement) {
+            for (BasicExpression expr : ((PrintStatement) statement).expressions) {
+                emit(PRINT, generateExpression(expr, -1));
+                temporaries = 0;
+            }
+        } else if (statement instanceof GotoStatement && !(statement instanceof GosubStatement)
+                && validTarget(((GotoStatement) statement).target)) {
+            emit(JUMP);
+            jump(((GotoStatement) statement).target);
+        } else if (statement instanceof GosubStatement && validTarget(((GosubStatement) statement).target)) {
+            emit(GOSUB, ((GosubStatement) statement).line, index + 1);
+            jump(((GosubStatement) statement).target);
+        } else if (statement instanceof ReturnStatement) {
+            emit(GOSUB_RETURN, ((ReturnStatement) statement).line);
+        } else if (statement instanceof ParallelForStatement) {
+            emit(CALL, node(statement), index + 1);
+        } else if (statement instanceof ForStatement) {
+            ForStatement forStatement = (ForStatement) statement;
+            int start = generateExpression(forStatement.start, -1);
+            int limit = generateExpression(forStatement.end, -1);
+            int step = forStatement.step == null ? constant(1.0) : generateExpression(forStatement.step, -1);
+            emit(FOR, forStatement.slot, start, forStatement.loopId, limit, step);
+            jump(forStatement.endFor);
+        } else if (statement instanceof NextStatement && parallelLoops.contains(((NextStatement) statement).loopId)) {
+            emit(RETURN, index);
+        } else if (statement instanceof NextStatement) {
+            NextStatement next = (NextStatement) statement;
+            emit(NEXT, next.slot, next.loopId);
+            jump(next.bodyStart);
+        } else if (statement instanceof PlotStatement) {
+            PlotStatement plot = (PlotStatement) statement;
+            int x = generateExpression(plot.x, -1);
+            int y = generateExpression(plot.y, -1);
+            emit(PLOT, x, y, generateExpression(plot.c, -1));
+        } else if (statement instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) statement;
+            List<Integer> isFalse = generateCondition(ifStatement.condition);
+            generateStatement(ifStatement.thenStatement, index);
+            patch(isFalse, size);
+        } else if (statement.getClass() != Statement.class) {
+            emit(CALL, node(statement), index + 1);
+        }
+    }
+
+    // emits jumps taken unless the expression passes the test of IF, returns their code offsets to patch
+    private List<Integer> generateCondition(BasicExpression expr) {
+        List<Integer> isFalse = new ArrayList<>();
+        int mark = temporaries;
+        int opcode = expr instanceof BinaryNode ? binaryOpcode((BinaryNode) expr) : -1;
+        if (expr instanceof AndNode) {
+            isFalse.addAll(generateCondition(((AndNode) expr).left));
+            isFalse.addAll(generateCondition(((AndNode) expr).right));
+        } else if (expr instanceof OrNode) {
+            List<Integer> tryRight = generateCondition(((OrNode) expr).left);
+            emit(JUMP, 0);
+            int isTrue = size - 1;
+            patch(tryRight, size);
+            isFalse.addAll(generateCondition(((OrNode) expr).right));
+            code[isTrue] = size;
+        } else if (expr instanceof NotNode) {
+            List<Integer> operandFalse = generateCondition(((NotNode) expr).operand);
+            emit(JUMP, 0);
+            isFalse.add(size - 1);
+            patch(operandFalse, size);
+        } else if (opcode >= EQ && opcode <= GE) {
+            // a comparison is 1 or 0, so the test of IF is the comparison itself
+            int left = generateExpression(((BinaryNode) expr).left, -1);
+            int right = generateExpression(((BinaryNode) expr).right, -1);
+            emit(JUMP_UNLESS_EQ + opcode - EQ, left, right, 0);
+            isFalse.add(size - 1);
+        } else {
+            emit(JUMP_UNLESS_TRUE, generateExpression(expr, -1), 0);
+            isFalse.add(size - 1);
+        }
+        temporaries = mark;
+        return isFalse;
+    }
+
+    private void patch(List<Integer> jumps, int target) {
+        for (int jump : jumps) {
+            code[jump] = target;
+        }
+    }
+
+    // returns the register holding the value, which is target if that is not -1
+    private int generateExpression(BasicExpression expr, int target) {
+        int result;
+        if (expr instanceof AndNode || expr instanceof OrNode || expr instanceof NotNode) {
+            // into a temporary, as target may be an operand of the condition
+            result = temporary();
+            List<Integer> isFalse = generateCondition(expr);
+            emit(MOVE, result, constant(1.0), JUMP, 0);
+            int done = size - 1;
+            patch(isFalse, size);
+            emit(MOVE, result, constant(0.0));
+            code[done] = size;
+        } else if (expr instanceof VariableExpression) {
+            result = ((VariableExpression) expr).slot;
+        } else if (Optimizer.isConstant(expr)) {
+            result = constant(expr.value);
+        } else if (expr instanceof BinaryNode && binaryOpcode((BinaryNode) expr) >= 0) {
+            BinaryNode node = (BinaryNode) expr;
+            int mark = temporaries;
+            int left = generateExpression(node.left, -1);
+            int right = generateExpression(node.right, -1);
+            // the operands are read before the result is written, so their temporaries can hold it
+            temporaries = mark;
+            result = target >= 0 ? target : temporary();
+            emit(binaryOpcode(node), result, left, right);
+            return result;
+        } else if (expr instanceof NegNode || expr instanceof BuiltinCall && unaryOpcode(expr) >= 0) {
+            int mark = temporaries;
+            int operand = generateExpression(expr instanceof NegNode
+                    ? ((NegNode) expr).operand : ((BuiltinCall) expr).param, -1);
+            temporaries = mark;
+            result = target >= 0 ? target : temporary();
+            emit(unaryOpcode(expr), result, operand);
+            return result;
+        } else if (expr instanceof ArrayExpression) {
+            ArrayExpression element = (ArrayExpression) expr;
+            int mark = temporaries;
+            int row = generateExpression(element.row, -1);
+            int column = element.column == null ? -1 : generateExpression(element.column, -1);
+            temporaries = mark;
+            result = target >= 0 ? target : temporary();
+            emit(ARRAY_LOAD, result, node(element), row, column);
+            return result;
+        } else {
+            result = target >= 0 ? target : temporary();
+            emit(EVAL, result, node(expr));
+            return result;
+        }
+        if (target >= 0 && target != result) {
+            emit(MOVE, target, result);
+            return target;
+        }
+        return result;
+    }
+
+    private static int binaryOpcode(BinaryNode node) {
+        if (node instanceof AddNode) {
+            return ADD;
+        } else if (node instanceof SubNode) {
+            return SUB;
+        } else if (node instanceof MulNode) {
+            return MUL;
+        } else if (node instanceof DivNode) {
+            return DIV;
+        } else if (node instanceof PowNode) {
+            return POW;
+        } else if (node instanceof EqNode) {
+            return EQ;
+        } else if (node instanceof NeNode) {
+            return NE;
+        } else if (node instanceof LessNode) {
+            return LT;
+        } else if (node instanceof LessEqNode) {
+            return LE;
+        } else if (node instanceof GreaterNode) {
+            return GT;
+        } else if (node instanceof GreaterEqNode) {
+            return GE;
+        }
+        return -1;
+    }
+
+    private static int unaryOpcode(BasicExpression expr) {
+        if (expr instanceof NegNode) {
+            return NEG;
+        } else if (expr instanceof AbsCall) {
+            return ABS;
+        } else if (expr instanceof SqrCall) {
+            return SQR;
+        } else if (expr instanceof ExpCall) {
+            return EXP;
+        } else if (expr instanceof SinCall) {
+            return SIN;
+        } else if (expr instanceof CosCall) {
+            return COS;
+        } else if (expr instanceof RoundCall) {
+            return ROUND;
+        } else if (expr instanceof SgnCall) {
+            return SGN;
+        } else if (expr instanceof CeilCall) {
+            return CEIL;
+        }
+        return -1;
+    }
+
+    private int constant(double value) {
+        return constants.computeIfAbsent(Double.doubleToRawLongBits(value), bits -> {
+            constantValues.add(value);
+            return varCount + constantValues.size() - 1;
+        });
+    }
+
+    // temporaries are numbered once the constant count is known, until then they are -2, -3, ...
+    private int temporary() {
+        int number = temporaries++;
+        maxTemporaries = Math.max(maxTemporaries, temporaries);
+        return -2 - number;
+    }
+
+    private int node(Object node) {
+        return nodeIndexes.computeIfAbsent(node, n -> {
+            nodes.add(n);
+            return nodes.size() - 1;
+        });
+    }
+
+    private boolean validTarget(int target) {
+        return target >= 0 && target <= program.length;
+    }
+
+    // appends a statement index operand that generate() turns into a code offset
+    private void jump(int target) {
+        jumps.add(size);
+        emit(target);
+    }
+
+    private void emit(int... values) {
+        if (size + values.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + values.length));
+        }
+        System.arraycopy(values, 0, code, size, values.length);
+        size += values.length;
+    }
+}
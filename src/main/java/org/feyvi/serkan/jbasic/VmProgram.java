@@ -0,0 +1,320 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+/*
+ A program lowered by VmCompiler to a flat instruction stream for a
+ register machine.
+
+ Instructions are an opcode followed by a fixed number of int operands,
+ all in one int[]. Operands name registers of a double[] that holds the
+ variables in their symbol table slots, then the constants of the
+ program, then temporaries. Loop limits and steps stay in the context
+ arrays, as FOR and NEXT of the interpreter keep them there.
+
+ The run method is a single loop over a switch on the opcode. Array
+ access, PLOT and calls are handled by separate methods, which keeps the
+ loop small enough for the JIT to keep pc and the arrays in registers.
+ Statements and expressions without an instruction of their own are
+ called through their run/evalDouble methods from the node pool, with
+ the variables written to the context before and read back after the
+ call.
+ */
+final class VmProgram implements CompiledProgram {
+    // r[a] = r[b]
+    static final int MOVE = 0;
+    // r[a] = r[b] op r[c]
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int DIV = 4;
+    static final int POW = 5;
+    static final int EQ = 6;
+    static final int NE = 7;
+    static final int LT = 8;
+    static final int LE = 9;
+    static final int GT = 10;
+    static final int GE = 11;
+    // r[a] = f(r[b])
+    static final int NEG = 12;
+    static final int ABS = 13;
+    static final int SQR = 14;
+    static final int EXP = 15;
+    static final int SIN = 16;
+    static final int COS = 17;
+    static final int ROUND = 18;
+    static final int SGN = 19;
+    static final int CEIL = 20;
+    // r[a] = array node b at (r[c], r[d]), d is -1 for one index
+    static final int ARRAY_LOAD = 21;
+    // array node a at (r[b], r[c]) = r[d], c is -1 for one index
+    static final int ARRAY_STORE = 22;
+    // pc = a
+    static final int JUMP = 23;
+    // pc = b unless r[a] is 1, the test of IF
+    static final int JUMP_UNLESS_TRUE = 24;
+    // r[a] = r[b], limit of loop c = r[d], step = r[e], pc = f if the loop is already done
+    static final int FOR = 25;
+    // r[a] += step of loop b, pc = c while the limit is not passed
+    static final int NEXT = 26;
+    static final int PRINT = 27;
+    // plot r[a], r[b] in color r[c]
+    static final int PLOT = 28;
+    // run statement node a with the counter at b
+    static final int CALL = 29;
+    // r[a] = expression node b
+    static final int EVAL = 30;
+    // leave with the counter at a, ends the body of a parallel loop
+    static final int RETURN = 31;
+    static final int END = 32;
+    // pc = c unless r[a] op r[b], an IF on a comparison
+    static final int JUMP_UNLESS_EQ = 33;
+    static final int JUMP_UNLESS_NE = 34;
+    static final int JUMP_UNLESS_LT = 35;
+    static final int JUMP_UNLESS_LE = 36;
+    static final int JUMP_UNLESS_GT = 37;
+    static final int JUMP_UNLESS_GE = 38;
+    // push return statement b and pc = c, a is the source line for errors
+    static final int GOSUB = 39;
+    // pc = statement popped from the return stack, a is the source line for errors
+    static final int GOSUB_RETURN = 40;
+
+    final int[] code;
+    // start of every statement in code, by statement index, and the END instruction last
+    final int[] lines;
+    // constant registers filled in, everything else 0
+    private final double[] registers;
+    private final int varCount;
+    private final Object[] nodes;
+
+    VmProgram(int[] code, int[] lines, double[] registers, int varCount, Object[] nodes) {
+        this.code = code;
+        this.lines = lines;
+        this.registers = registers;
+        this.varCount = varCount;
+        this.nodes = nodes;
+    }
+
+    @Override
+    public void run(JBasicContext context) {
+        final int[] code = this.code;
+        final double[] r = registers.clone();
+        final double[] limits = context.loopLimits;
+        final double[] steps = context.loopSteps;
+        System.arraycopy(context.vars, 0, r, 0, varCount);
+        int pc = lines[context.counter];
+        while (true) {
+            switch (code[pc]) {
+                case MOVE:
+                    r[code[pc + 1]] = r[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case ADD:
+                    r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case SUB:
+                    r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case MUL:
+                    r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DIV:
+                    r[code[pc + 1]] = r[code[pc + 2]] / r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case POW:
+                    r[code[pc + 1]] = Math.pow(r[code[pc + 2]], r[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case EQ:
+                    r[code[pc + 1]] = r[code[pc + 2]] == r[code[pc + 3]] ? 1.0 : 0.0;
+                    pc += 4;
+                    break;
+                case NE:
+                    r[code[pc + 1]] = r[code[pc + 2]] != r[code[pc + 3]] ? 1.0 : 0.0;
+                    pc += 4;
+                    break;
+                case LT:
+                    r[code[pc + 1]] = r[code[pc + 2]] < r[code[pc + 3]] ? 1.0 : 0.0;
+                    pc += 4;
+                    break;
+                case LE:
+                    r[code[pc + 1]] = r[code[pc + 2]] <= r[code[pc + 3]] ? 1.0 : 0.0;
+                    pc += 4;
+                    break;
+                case GT:
+                    r[code[pc + 1]] = r[code[pc + 2]] > r[code[pc + 3]] ? 1.0 : 0.0;
+                    pc += 4;
+                    break;
+                case GE:
+                    r[code[pc + 1]] = r[code[pc + 2]] >= r[code[pc + 3]] ? 1.0 : 0.0;
+                    pc += 4;
+                    break;
+                case NEG:
+                    r[code[pc + 1]] = -r[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case ABS:
+                    r[code[pc + 1]] = Math.abs(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SQR:
+                    r[code[pc + 1]] = Math.sqrt(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case EXP:
+                    r[code[pc + 1]] = Math.exp(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SIN:
+                    r[code[pc + 1]] = Math.sin(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case COS:
+                    r[code[pc + 1]] = Math.cos(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ROUND:
+                    r[code[pc + 1]] = (double) Math.round(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SGN:
+                    r[code[pc + 1]] = Math.signum(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case CEIL:
+                    r[code[pc + 1]] = Math.ceil(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ARRAY_LOAD:
+                case ARRAY_STORE:
+                    pc = access(context, r, pc);
+                    break;
+                case JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case JUMP_UNLESS_TRUE:
+                    pc = r[code[pc + 1]] == 1.0 ? pc + 3 : code[pc + 2];
+                    break;
+                case JUMP_UNLESS_EQ:
+                    pc = r[code[pc + 1]] == r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                    break;
+                case JUMP_UNLESS_NE:
+                    pc = r[code[pc + 1]] != r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                    break;
+                case JUMP_UNLESS_LT:
+                    pc = r[code[pc + 1]] < r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                    break;
+                case JUMP_UNLESS_LE:
+                    pc = r[code[pc + 1]] <= r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                    break;
+                case JUMP_UNLESS_GT:
+                    pc = r[code[pc + 1]] > r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                    break;
+                case JUMP_UNLESS_GE:
+                    pc = r[code[pc + 1]] >= r[code[pc + 2]] ? pc + 4 : code[pc + 3];
+                    break;
+                case FOR: {
+                    double value = r[code[pc + 2]];
+                    double limit = r[code[pc + 4]];
+                    double increment = r[code[pc + 5]];
+                    int loop = code[pc + 3];
+                    r[code[pc + 1]] = value;
+                    limits[loop] = limit;
+                    steps[loop] = increment;
+                    pc = (increment >= 0 ? value > limit : value < limit) ? code[pc + 6] : pc + 7;
+                    break;
+                }
+                case NEXT: {
+                    int loop = code[pc + 2];
+                    double increment = steps[loop];
+                    double value = r[code[pc + 1]] + increment;
+                    r[code[pc + 1]] = value;
+                    pc = (increment >= 0 ? value <= limits[loop] : value >= limits[loop]) ? code[pc + 3] : pc + 4;
+                    break;
+                }
+                case PRINT:
+                    context.out.println(r[code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case PLOT:
+                case CALL:
+                case EVAL:
+                case GOSUB:
+                case GOSUB_RETURN:
+                    pc = call(context, r, pc);
+                    break;
+                case RETURN:
+                    System.arraycopy(r, 0, context.vars, 0, varCount);
+                    context.counter = code[pc + 1];
+                    return;
+                case END:
+                    System.arraycopy(r, 0, context.vars, 0, varCount);
+                    context.counter = lines.length - 1;
+                    return;
+                default:
+                    throw new IllegalStateException("Invalid instruction " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    // array access, returns the next pc
+    private int access(JBasicContext context, double[] r, int pc) {
+        final int[] code = this.code;
+        switch (code[pc]) {
+            case ARRAY_LOAD: {
+                ArrayExpression element = (ArrayExpression) nodes[code[pc + 2]];
+                BasicArray array = BasicArray.of(context, element.slot, element.name, element.line);
+                int column = code[pc + 4];
+                r[code[pc + 1]] = array.get(r[code[pc + 3]], column < 0 ? 0.0 : r[column], element.line);
+                return pc + 5;
+            }
+            case ARRAY_STORE: {
+                ArrayExpression element = (ArrayExpression) nodes[code[pc + 1]];
+                BasicArray array = BasicArray.of(context, element.slot, element.name, element.line);
+                int column = code[pc + 3];
+                array.set(r[code[pc + 2]], column < 0 ? 0.0 : r[column], element.line, r[code[pc + 4]]);
+                return pc + 5;
+            }
+            default:
+                throw new IllegalStateException("Invalid instruction " + code[pc] + " at " + pc);
+        }
+    }
+
+    // PLOT, GOSUB, RETURN and calls of nodes, returns the next pc
+    private int call(JBasicContext context, double[] r, int pc) {
+        final int[] code = this.code;
+        switch (code[pc]) {
+            case PLOT:
+                context.screen.plot((int) r[code[pc + 1]], (int) r[code[pc + 2]], r[code[pc + 3]]);
+                return pc + 4;
+            case CALL: {
+                Statement statement = (Statement) nodes[code[pc + 1]];
+                System.arraycopy(r, 0, context.vars, 0, varCount);
+                context.counter = code[pc + 2];
+                statement.run(context);
+                System.arraycopy(context.vars, 0, r, 0, varCount);
+                return lines[context.counter];
+            }
+            case EVAL: {
+                BasicExpression expression = (BasicExpression) nodes[code[pc + 2]];
+                System.arraycopy(r, 0, context.vars, 0, varCount);
+                r[code[pc + 1]] = expression.evalDouble(context);
+                return pc + 3;
+            }
+            case GOSUB:
+                context.pushReturn(code[pc + 2], code[pc + 1]);
+                return code[pc + 3];
+            case GOSUB_RETURN:
+                return lines[context.popReturn(code[pc + 1])];
+            default:
+                throw new IllegalStateException("Invalid instruction " + code[pc] + " at " + pc);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/* JBasic - BASIC interpreter
+ *
+ * Serkan Kenar
+ * Dubai, 2019.
+ */
+package org.feyvi.serkan.jbasic;
+
+import javax.swing.*;
+import java.awt.*;
+
+/*
+ Shows a framebuffer in a window at twice its size.
+ The window is repainted at most FRAME_RATE times per second, plus
+ whenever the framebuffer is flushed.
+ */
+final class WindowDisplay implements Display {
+    private static final int FRAME_RATE = 30;
+    private static final int SCALE = 2;
+
+    private final JComponent view;
+
+    WindowDisplay(FrameBuffer frameBuffer) {
+        this.view = new JComponent() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                g.drawImage(frameBuffer.image, 0, 0, getWidth(), getHeight(), null);
+            }
+        };
+        view.setPreferredSize(new Dimension(FrameBuffer.WIDTH * SCALE, FrameBuffer.HEIGHT * SCALE));
+        SwingUtilities.invokeLater(() -> {
+            JFrame frame = new JFrame("jBASIC");
+            frame.add(view);
+            frame.pack();
+            frame.setVisible(true);
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            new Timer(1000 / FRAME_RATE, e -> view.repaint()).start();
+        });
+    }
+
+    @Override
+    public void present(FrameBuffer frameBuffer) {
+        view.repaint();
+    }
+}
@@ -1,15 +1,38 @@
 package org.feyvi.serkan.jbasic;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class JBasicTest {
     @Test
@@ -20,8 +43,9 @@ class JBasicTest {
         assertEquals(0, errors.size());
     }
 
-    @Test
-    void testFunctionCallExpression() {
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testFunctionCallExpression(Engine engine) {
         List<String> source = new ArrayList<>(Arrays.asList(
                 "10 IF SQR(4) = 2 THEN PRINT 3.14",
                 "15 PRINT SQR(4)",
@@ -33,7 +57,7 @@ class JBasicTest {
                 "70 PRINT ROUND(4.49)",
                 "80 PRINT CEIL(4.49)"
         ));
-        JBasic interpreter = new JBasic(source);
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
         var errors = interpreter.getErrors();
         errors.forEach(System.err::println);
         assertEquals(0, errors.size());
@@ -61,4 +85,1282 @@ class JBasicTest {
                 "Error [Line 1]: Invalid variable for the for loop, Expecting I, found J";
         assertEquals(expectedError, errors.get(0));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testUndefinedLabel() {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET X = 1",
+                "20 IF X = 1 THEN GOTO done",
+                "30 GOTO 40"
+        ));
+        JBasic interpreter = new JBasic(source);
+        var errors = interpreter.getErrors();
+        assertEquals(2, errors.size());
+        assertEquals("20 IF X = 1 THEN GOTO done\nError [Line 1]: Undefined label done", errors.get(0));
+        assertEquals("30 GOTO 40\nError [Line 2]: Undefined label 40", errors.get(1));
+    }
+
+    @Test
+    void testUnknownFunction() {
+        JBasic interpreter = new JBasic("10 PRINT FOO(4)");
+        var errors = interpreter.getErrors();
+        assertEquals(1, errors.size());
+        assertEquals("10 PRINT FOO(4)\nError [Line 0]: Unknown function FOO", errors.get(0));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testComparisonOperators(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 PRINT 2 < 3",
+                "20 PRINT 3 <= 3",
+                "30 PRINT 2 > 3",
+                "40 PRINT 3 >= 4",
+                "50 PRINT 4 = 4",
+                "60 PRINT 2 ^ 10",
+                "70 PRINT 7 / 2 - 1"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        assertEquals("1.0\n1.0\n0.0\n0.0\n1.0\n1024.0\n2.5\n", captureRunOutput(interpreter));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testOperatorPrecedence(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 PRINT 2 + 4 * 2",
+                "20 PRINT 2 ^ 3 ^ 2",
+                "30 PRINT -2 ^ 2",
+                "40 PRINT 10 - 4 - 3",
+                "50 PRINT 8 / 4 / 2",
+                "60 PRINT 2 * 3 < 7",
+                "70 LET X = 3",
+                "80 PRINT X <> 3",
+                "90 PRINT X <> 4"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        assertEquals("10.0\n512.0\n-4.0\n3.0\n1.0\n1.0\n0.0\n1.0\n", captureRunOutput(interpreter));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testConstantFolding(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET L = 100",
+                "20 LET K = 2 * 3 + SQR(16)",
+                "30 FOR I = 1 TO 3",
+                "40 LET X = (I ^ 2 * 1 - 0) / (L - 10) + K ^ 1",
+                "50 PRINT X",
+                "60 NEXT I",
+                "70 LET L = L + 1",
+                "80 PRINT L"
+        ));
+        JBasic optimized = new JBasic(source, new JBasicOptions().engine(engine));
+        JBasic plain = new JBasic(source, new JBasicOptions().engine(engine).optimize(false));
+        assertEquals(0, optimized.getErrors().size());
+        assertEquals(captureRunOutput(plain), captureRunOutput(optimized));
+
+        // K is assigned once before any jump, L is assigned twice and stays a variable
+        LetStatement let = (LetStatement) optimized.getProgram()[3];
+        AddNode sum = (AddNode) let.expr;
+        assertEquals(10.0, sum.right.value);
+        DivNode quotient = (DivNode) sum.left;
+        assertEquals(MulNode.class, quotient.left.getClass());
+        assertEquals(SubNode.class, quotient.right.getClass());
+        assertEquals(10.0, ((LetStatement) optimized.getProgram()[1]).expr.value);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testVariableSlots(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET X = 2",
+                "20 LET Y = X * 3",
+                "30 FOR I = 1 TO 4",
+                "40 LET X = X + I",
+                "50 NEXT I"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        SymbolTable symbols = interpreter.getSymbols();
+        assertEquals(Arrays.asList("X", "Y", "I"), symbols.names());
+        assertEquals(1, symbols.slotOf("Y"));
+        assertEquals(-1, symbols.slotOf("Z"));
+
+        JBasicContext context = interpreter.createContext(System.out);
+        interpreter.run(context);
+        assertEquals(12.0, context.getVariable("X"));
+        assertEquals(6.0, context.getVariable("Y"));
+        assertThrows(IllegalArgumentException.class, () -> context.getVariable("Z"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testMandelbrotIterationDoesNotAllocate(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET U = -0.5",
+                "20 LET V = 0",
+                "30 LET X = U",
+                "40 LET Y = V",
+                "50 LET N = 0",
+                "60 LET R = X * X",
+                "70 LET Q = Y * Y",
+                "80 IF R + Q > 4 THEN GOTO 130",
+                "90 IF N >= L THEN GOTO 130",
+                "100 LET Y = 2 * X * Y + V",
+                "110 LET X = R - Q + U",
+                "120 LET N = N + 1",
+                "125 GOTO 60",
+                "130 PRINT N"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+        long shortRun = allocatedBytes(threadBean, interpreter, sink, 1_000);
+        long longRun = allocatedBytes(threadBean, interpreter, sink, 200_000);
+        // the long run executes 200 times as many iterations, but must not allocate more
+        assertTrue(longRun - shortRun < 16 * 1024,
+                String.format("allocated %d bytes for 199000 extra iterations", longRun - shortRun));
+    }
+
+    private long allocatedBytes(com.sun.management.ThreadMXBean threadBean, JBasic interpreter,
+                                PrintStream sink, int iterations) {
+        long threadId = Thread.currentThread().threadId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        JBasicContext context = interpreter.createContext(sink);
+        context.setVariable("L", iterations);
+        interpreter.run(context);
+        assertEquals(iterations, context.getVariable("N"));
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testMandelbrotChecksum(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "5 LET L = 100",
+                "10 FOR I = 0 TO 32",
+                "20 FOR J = 0 TO 20",
+                "30 LET U = I / 10 - 1.5",
+                "40 LET V = J / 10 - 1",
+                "60 LET X = U",
+                "70 LET Y = V",
+                "80 LET N = 0",
+                "90 LET R = X * X",
+                "100 LET Q = Y * Y",
+                "110 IF R + Q > 4 THEN GOTO plot",
+                "120 IF N >= L THEN GOTO plot",
+                "130 LET Y = 2 * X * Y + V",
+                "140 LET X = R - Q + U",
+                "150 LET N = N + 1",
+                "160 GOTO 90",
+                "plot: LET C = 0",
+                "IF N >= 10 THEN LET C = 8 * (N - 10) / (L - 10)",
+                "200 LET S = S + C",
+                "210 NEXT J",
+                "220 NEXT I",
+                "230 PRINT S"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        assertEquals("1287.2000000000007\n", captureRunOutput(interpreter));
+    }
+
+    @Test
+    void testCompiledProgramIsLoaded() {
+        JBasic interpreter = new JBasic("10 LET X = 1\n20 PRINT X", new JBasicOptions().engine(Engine.COMPILER));
+        CompiledProgram compiled = interpreter.getCompiledProgram();
+        assertNotNull(compiled);
+        assertTrue(compiled.getClass().isHidden());
+        assertSame(compiled, interpreter.getCompiledProgram());
+    }
+
+    @Test
+    void testVmInstructions() {
+        JBasic interpreter = new JBasic("10 LET X = X + 1\n20 LET Y = (X - 2) * X\n30 IF Y < 100 THEN GOTO 10",
+                new JBasicOptions().engine(Engine.VM));
+        VmProgram vm = (VmProgram) interpreter.getCompiledProgram();
+        // X and Y are registers 0 and 1, the constants 1, 2 and 100 follow, then one temporary.
+        // The IF compares and jumps in one instruction.
+        assertArrayEquals(new int[]{
+                VmProgram.ADD, 0, 0, 2,
+                VmProgram.SUB, 5, 0, 3, VmProgram.MUL, 1, 5, 0,
+                VmProgram.JUMP_UNLESS_LT, 1, 4, 18, VmProgram.JUMP, 0,
+                VmProgram.END
+        }, vm.code);
+        assertArrayEquals(new int[]{0, 4, 12, 18}, vm.lines);
+        JBasicContext context = interpreter.createContext(new PrintStream(OutputStream.nullOutputStream()));
+        interpreter.run(context);
+        assertEquals(12.0, context.getVariable("X"));
+        assertEquals(120.0, context.getVariable("Y"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testStatementsWithoutCompiledForm(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET X = 2",
+                "20 SCREEN 1",
+                "30 LET X = X * 2",
+                "40 IF X < 10 THEN GOTO 20",
+                "50 PRINT X"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        assertEquals("16.0\n", captureRunOutput(interpreter));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testForStep(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET N = 3",
+                "20 FOR I = 10 TO 1 STEP -3",
+                "30 PRINT I",
+                "40 NEXT I",
+                "50 PRINT I",
+                "60 FOR X = 0 TO 1 STEP 0.25",
+                "70 LET S = S + X",
+                "80 NEXT X",
+                "90 PRINT S",
+                "100 FOR I = 5 TO 1",
+                "110 PRINT 999",
+                "120 NEXT I",
+                // the limit and step are evaluated once, when the loop is entered
+                "130 FOR I = 1 TO N STEP N - 2",
+                "140 LET N = 10",
+                "150 PRINT I",
+                "160 NEXT I",
+                "170 FOR D = -1 TO 1 STEP 2",
+                "180 FOR J = 2 TO 1 STEP D",
+                "190 PRINT J * D",
+                "200 NEXT J",
+                "210 NEXT D"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        assertEquals("10.0\n7.0\n4.0\n1.0\n-2.0\n2.5\n1.0\n2.0\n3.0\n-2.0\n-1.0\n", captureRunOutput(interpreter));
+        if (engine == Engine.COMPILER) {
+            assertNotNull(interpreter.getCompiledProgram());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testConcurrentRuns(Engine engine) throws Exception {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET S = 0",
+                "20 FOR I = 1 TO K",
+                "30 LET S = S + I",
+                "40 IF I >= 5 THEN GOTO 60",
+                "50 NEXT I",
+                "60 FOR J = 1 TO 3",
+                "70 LET S = S * 2",
+                "80 NEXT J",
+                "90 PRINT S"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+
+        int threads = 16;
+        int runsPerThread = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                int k = t + 1;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    // the first loop exits early for K > 5, which must not leak into the next run
+                    double expected = 8 * (Math.min(k, 5) * (Math.min(k, 5) + 1) / 2);
+                    for (int run = 0; run < runsPerThread; run++) {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        JBasicContext context = interpreter.createContext(
+                                new PrintStream(baos, true, StandardCharsets.UTF_8));
+                        context.setVariable("K", k);
+                        interpreter.run(context);
+                        assertEquals(expected + "\n", new String(baos.toByteArray(), StandardCharsets.UTF_8));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testPlotWritesFrameBuffer(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "5 SCREEN 13",
+                "10 FOR I = 0 TO 3",
+                "20 PLOT I , I * 2 , I * 2",
+                "30 NEXT I",
+                "40 PLOT 320 , 0 , 8",
+                "50 PLOT -1 , 5 , 8"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine).headless());
+        assertEquals(0, interpreter.getErrors().size());
+        JBasicContext context = interpreter.createContext(System.out);
+        interpreter.run(context);
+
+        int[] pixels = context.screen.pixels;
+        assertEquals(0x000000, pixels[0]);
+        assertEquals(0x404040, pixels[2 * FrameBuffer.WIDTH + 1]);
+        assertEquals(0x808080, pixels[4 * FrameBuffer.WIDTH + 2]);
+        assertEquals(0xbfbfbf, pixels[6 * FrameBuffer.WIDTH + 3]);
+        // off-screen plots are dropped
+        assertEquals(3, Arrays.stream(pixels).filter(p -> p != 0).count());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testParallelForMatchesSequential(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "1 SCREEN 13",
+                "2 DIM R(64)",
+                "5 LET L = 50",
+                "10 %FOR I = 0 TO 64 STEP 1",
+                "20 FOR J = 0 TO 40",
+                "30 LET U = I / 20 - 2",
+                "40 LET V = J / 20 - 1",
+                "50 LET X = U",
+                "60 LET Y = V",
+                "70 LET N = 0",
+                "80 LET Q = X * X + Y * Y",
+                "90 IF Q > 4 THEN GOTO 140",
+                "100 IF N >= L THEN GOTO 140",
+                "110 LET Y = 2 * X * Y + V",
+                "120 LET X = X * X - Y * Y / 4 + U",
+                "130 LET N = N + 1",
+                "135 GOTO 80",
+                "140 PLOT I, J, N / 6",
+                "150 LET R(I) = R(I) + N",
+                "160 NEXT J",
+                "170 IF I = 32 THEN PRINT R(I)",
+                "180 NEXT I",
+                "190 PRINT I",
+                "200 PRINT R(10) + R(64)"
+        ));
+        ByteArrayOutputStream sequentialOutput = new ByteArrayOutputStream();
+        ByteArrayOutputStream parallelOutput = new ByteArrayOutputStream();
+        JBasicContext sequential = runLoopVariant(source, "FOR", engine, sequentialOutput);
+        JBasicContext parallel = runLoopVariant(source, "PARALLEL FOR", engine, parallelOutput);
+        assertEquals(sequentialOutput.toString(StandardCharsets.UTF_8), parallelOutput.toString(StandardCharsets.UTF_8));
+        assertArrayEquals(sequential.screen.pixels, parallel.screen.pixels);
+        assertArrayEquals(sequential.arrays[0].values, parallel.arrays[0].values);
+        assertArrayEquals(sequential.vars, parallel.vars);
+        assertEquals(65.0, parallel.getVariable("I"));
+    }
+
+    private JBasicContext runLoopVariant(List<String> source, String loop, Engine engine, OutputStream output) {
+        List<String> lines = new ArrayList<>();
+        source.forEach(line -> lines.add(line.replace("%FOR", loop)));
+        JBasic interpreter = new JBasic(lines, new JBasicOptions().engine(engine).headless());
+        assertEquals(0, interpreter.getErrors().size());
+        JBasicContext context = interpreter.createContext(new PrintStream(output, true, StandardCharsets.UTF_8));
+        interpreter.run(context);
+        return context;
+    }
+
+    @Test
+    void testParallelForErrors() {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 PARALLEL FOR I = 1 TO 4",
+                "20 IF I = 2 THEN GOTO 60",
+                "30 SCREEN 13",
+                "40 IF I = 3 THEN GOTO 50",
+                "45 DIM A(3)",
+                "50 NEXT I",
+                "60 GOTO 30"
+        ));
+        JBasic interpreter = new JBasic(source);
+        assertEquals(Arrays.asList(
+                "20 IF I = 2 THEN GOTO 60\nError [Line 1]: GOTO out of PARALLEL FOR",
+                "30 SCREEN 13\nError [Line 2]: SCREEN inside PARALLEL FOR",
+                "45 DIM A(3)\nError [Line 4]: DIM inside PARALLEL FOR",
+                "60 GOTO 30\nError [Line 6]: GOTO into PARALLEL FOR"
+        ), interpreter.getErrors());
+        // the same loop with a DIM in its body runs sequentially
+        String dimInBody = "10 %FOR I = 1 TO 4\n20 DIM A(3)\n30 LET A(1) = I\n40 NEXT I\n50 PRINT A(1)";
+        assertEquals(Collections.singletonList("20 DIM A(3)\nError [Line 1]: DIM inside PARALLEL FOR"),
+                new JBasic(dimInBody.replace("%FOR", "PARALLEL FOR")).getErrors());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new JBasic(dimInBody.replace("%FOR", "FOR")).run(new PrintStream(output, true, StandardCharsets.UTF_8));
+        assertEquals("4.0" + System.lineSeparator(), output.toString(StandardCharsets.UTF_8));
+
+        JBasic zeroStep = new JBasic("10 PARALLEL FOR J = 1 TO 2 STEP 0\n20 NEXT J");
+        BasicRuntimeException error = assertThrows(BasicRuntimeException.class,
+                () -> zeroStep.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 0]: PARALLEL FOR needs a step other than 0", error.getMessage());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testProgramCache(Engine engine, @TempDir Path cacheDir) throws IOException {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 DIM A(4), B(2, 2)",
+                "20 SCREEN 13",
+                "30 FOR I = 4 TO 0 STEP -2",
+                "40 LET A(I) = ABS(-I) ^ 2 + SQR(16) * SGN(I)",
+                "50 NEXT I",
+                "60 PARALLEL FOR J = 0 TO 2",
+                "70 LET B(J, 2 - J) = CEIL(J / 3) + ROUND(SIN(0) + COS(0))",
+                "75 PLOT J , J , 8",
+                "80 NEXT J",
+                "90 GOSUB reset",
+                "loop: IF N >= 3 THEN GOTO done",
+                "110 LET N = N + EXP(0)",
+                "120 IF N <> 2 THEN GOTO loop",
+                "130 PRINT A(0) + A(2) * 10 + A(4) * 100",
+                "135 PRINT B(1, 1) + (N < 2) * 10 + (N <= 2) * 100 + (N = 2) * 1000 + (N > 2) * 10000",
+                "140 GOTO loop",
+                "done: PRINT N + B(2, 0) * 10",
+                "170 GOTO end",
+                "reset: LET N = 0",
+                "190 RETURN",
+                "end: PRINT N"
+        ));
+        JBasicOptions options = new JBasicOptions().engine(engine).headless().cache(cacheDir);
+        JBasic first = new JBasic(source, options);
+        assertFalse(first.loadedFromCache);
+        assertEquals(0, first.getErrors().size());
+        String expected = captureRunOutput(first);
+        assertEquals("2080.0\n1102.0\n23.0\n3.0\n", expected);
+
+        JBasic second = new JBasic(source, options);
+        assertTrue(second.loadedFromCache);
+        assertEquals(expected, captureRunOutput(second));
+        assertEquals(first.getSymbols().names(), second.getSymbols().names());
+        assertEquals(first.getProgram().length, second.getProgram().length);
+
+        // an edited source gets its own entry
+        source.set(16, "done: PRINT N * 2");
+        JBasic edited = new JBasic(source, options);
+        assertFalse(edited.loadedFromCache);
+        assertEquals(2, Files.list(cacheDir).count());
+
+        // a damaged entry is parsed again and replaced
+        Path entry = ProgramCache.entry(cacheDir, source, options);
+        byte[] data = Files.readAllBytes(entry);
+        Files.write(entry, Arrays.copyOf(data, data.length / 2));
+        JBasic damaged = new JBasic(source, options);
+        assertFalse(damaged.loadedFromCache);
+        assertTrue(captureRunOutput(damaged).endsWith("6.0\n3.0\n"));
+        assertArrayEquals(data, Files.readAllBytes(entry));
+        assertTrue(new JBasic(source, options).loadedFromCache);
+
+        // another build of the interpreter uses other entries
+        assertNotNull(ProgramCache.version());
+        assertNotEquals(entry, ProgramCache.entry(cacheDir, ProgramCache.version() + "+1", source, options));
+
+        // programs with errors are never cached
+        assertEquals(1, new JBasic("10 GOTO 20", options).getErrors().size());
+        assertEquals(1, new JBasic("10 GOTO 20", options).getErrors().size());
+        assertEquals(2, Files.list(cacheDir).count());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testLogicalOperators(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 DIM A(2)",
+                "20 LET X = 3",
+                "30 PRINT X > 1 AND X < 5",
+                "40 PRINT X < 1 OR X = 3 AND NOT X = 4",
+                "50 PRINT NOT X > 1 OR 2 = 2",
+                "60 LET X = X = 3 AND NOT 0",
+                "70 PRINT X",
+                // the right operands would be out of bounds
+                "80 IF X = 0 AND A(9) = 0 THEN PRINT 99",
+                "90 IF X = 1 OR A(9) = 0 THEN GOTO 110",
+                "100 PRINT 99",
+                "110 LET N = 0 / 0",
+                "120 IF NOT N = N THEN PRINT 7",
+                "130 IF N <> N AND NOT N < 1 AND NOT N >= 1 THEN PRINT 8"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        assertEquals("1.0\n1.0\n1.0\n1.0\n7.0\n8.0\n", captureRunOutput(interpreter));
+        // IF ... THEN GOTO is one statement that jumps itself
+        assertTrue(interpreter.getProgram()[8] instanceof IfGotoStatement);
+        assertFalse(interpreter.getProgram()[7] instanceof IfGotoStatement);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testGosub(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET N = 5",
+                "20 LET F = 1",
+                "30 GOSUB factorial",
+                "40 PRINT F",
+                "50 GOSUB square",
+                "60 PRINT F",
+                "70 GOTO 200",
+                // recursive: F = F * N!
+                "factorial: IF N < 2 THEN RETURN",
+                "110 LET F = F * N",
+                "120 LET N = N - 1",
+                "130 GOSUB factorial",
+                "140 RETURN",
+                "square: LET F = F * F",
+                "160 RETURN",
+                "200 PRINT N"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        assertEquals("120.0\n14400.0\n1.0\n", captureRunOutput(interpreter));
+
+        JBasic deep = new JBasic("10 GOSUB 10", new JBasicOptions().engine(engine).gosubDepth(100));
+        BasicRuntimeException error = assertThrows(BasicRuntimeException.class,
+                () -> deep.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 0]: GOSUB nested deeper than 100 levels", error.getMessage());
+
+        JBasic stray = new JBasic("10 PRINT 1\n20 RETURN", new JBasicOptions().engine(engine));
+        error = assertThrows(BasicRuntimeException.class,
+                () -> stray.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 1]: RETURN without GOSUB", error.getMessage());
+    }
+
+    @Test
+    void testGosubErrors() {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 GOSUB 99",
+                "20 PARALLEL FOR I = 1 TO 4",
+                "30 GOSUB 70",
+                "40 NEXT I",
+                "50 GOSUB 30",
+                "70 RETURN"
+        ));
+        JBasic interpreter = new JBasic(source);
+        assertEquals(Arrays.asList(
+                "10 GOSUB 99\nError [Line 0]: Undefined label 99",
+                "30 GOSUB 70\nError [Line 2]: GOSUB inside PARALLEL FOR",
+                "50 GOSUB 30\nError [Line 4]: GOSUB into PARALLEL FOR"
+        ), interpreter.getErrors());
+    }
+
+    @Test
+    void testStatementFusion() {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 DIM A(5)",
+                "20 LET S = 0",
+                "30 FOR I = 1 TO 5",
+                "40 LET X = I * I",
+                "50 LET Y = X + I",
+                "60 LET S = S + Y",
+                "70 LET A(I) = S",
+                "80 PRINT S",
+                "90 NEXT I",
+                "100 GOSUB double",
+                "110 LET S = S + 1",
+                "120 PRINT S",
+                "130 GOTO 200",
+                "double: LET S = S * 2",
+                "150 LET T = S",
+                "160 RETURN",
+                "200 PRINT A(5) + T"
+        ));
+        JBasic fused = new JBasic(source);
+        JBasic unfused = new JBasic(source, new JBasicOptions().fuse(false));
+        assertEquals(captureRunOutput(unfused), captureRunOutput(fused));
+        assertEquals("2.0\n8.0\n20.0\n40.0\n70.0\n141.0\n210.0\n", captureRunOutput(fused));
+
+        Statement[] program = fused.getInterpretedProgram();
+        // lines 40 to 80 are one block, the program keeps its statements and indexes
+        assertTrue(program[3] instanceof BlockStatement);
+        assertEquals(5, ((BlockStatement) program[3]).statements.length);
+        assertTrue(fused.getProgram()[3] instanceof LetStatement);
+        assertEquals(fused.getProgram().length, program.length);
+        // the GOSUB returns to line 110, which starts its own block that also takes the GOTO
+        assertTrue(program[10] instanceof BlockStatement);
+        assertEquals(16, ((BlockStatement) program[10]).next);
+        assertTrue(program[13] instanceof LetBlock);
+        assertTrue(program[0] instanceof BlockStatement);
+        assertSame(unfused.getProgram(), unfused.getInterpretedProgram());
+
+        // errors inside a block report their own line
+        JBasic failing = new JBasic("10 DIM A(3)\n20 LET X = 4\n30 LET A(X) = 1\n40 PRINT X");
+        assertTrue(failing.getInterpretedProgram()[0] instanceof BlockStatement);
+        BasicRuntimeException error = assertThrows(BasicRuntimeException.class,
+                () -> failing.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals(2, error.getLine());
+    }
+
+    @Test
+    void testTieredExecution() throws InterruptedException {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET S = 0",
+                "20 FOR I = 1 TO 3",
+                "30 FOR J = 1 TO 10",
+                "40 LET S = S + J",
+                "50 NEXT J",
+                "60 NEXT I",
+                "70 LET N = 0",
+                "again: LET N = N + 1",
+                "90 IF N < 5 THEN GOTO again",
+                "100 PRINT S + N"
+        ));
+        JBasic cold = new JBasic(source, new JBasicOptions().engine(Engine.TIERED).tierThreshold(1_000_000));
+        assertEquals("170.0\n", captureRunOutput(cold));
+        TierMetrics metrics = cold.getTierMetrics();
+        assertEquals(3, metrics.getLoopCount());
+        assertEquals(Arrays.asList("20", "30", "again"), Arrays.asList(metrics.getLoopLabel(0),
+                metrics.getLoopLabel(1), metrics.getLoopLabel(2)));
+        assertEquals(1, metrics.getInvocations(0));
+        assertEquals(2, metrics.getBackEdges(0));
+        assertEquals(3, metrics.getInvocations(1));
+        assertEquals(27, metrics.getBackEdges(1));
+        assertEquals(1, metrics.getInvocations(2));
+        assertEquals(4, metrics.getBackEdges(2));
+        assertFalse(metrics.isPromoted());
+        assertTrue(metrics.getEvents().isEmpty());
+        assertNull(new JBasic(source).getTierMetrics());
+
+        // the inner loop reaches the threshold, the next run switches to the compiled program at its first loop
+        JBasic hot = new JBasic(source, new JBasicOptions().engine(Engine.TIERED).tierThreshold(20));
+        assertEquals("170.0\n", captureRunOutput(hot));
+        metrics = hot.getTierMetrics();
+        for (int i = 0; i < 1000 && !metrics.isPromoted(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(metrics.isPromoted());
+        assertTrue(metrics.getEvents().get(0).startsWith("loop at 30 reached 20 entries and back edges"));
+        assertTrue(metrics.getEvents().get(1).startsWith("compiled in"));
+        long switches = metrics.getSwitches();
+        JBasicContext context = hot.createContext(new PrintStream(OutputStream.nullOutputStream()));
+        hot.run(context);
+        assertEquals(170.0, context.getVariable("S") + context.getVariable("N"));
+        assertSame(hot.getCompiledProgram(), context.compiled);
+        assertEquals(switches + 1, metrics.getSwitches());
+        // the entry of the outer loop is still counted before the switch
+        assertEquals(2, metrics.getInvocations(0));
+    }
+
+    @Test
+    void testRepl() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JBasicRepl repl = new JBasicRepl(new JBasicOptions(), new PrintStream(output, true));
+        for (String input : Arrays.asList("30 NEXT I", "10 FOR I = 1 TO 3", "20 PRINT I * K", "5 LET K = 2",
+                "RUN", "list")) {
+            assertTrue(repl.execute(input));
+        }
+        assertEquals("2.0\n4.0\n6.0\nREADY\n5 LET K = 2\n10 FOR I = 1 TO 3\n20 PRINT I * K\n30 NEXT I\n",
+                output.toString());
+        assertEquals(4, repl.parsedLines);
+
+        // replacing and inserting lines moves the statements, jumps and the NEXT are linked again
+        output.reset();
+        for (String input : Arrays.asList("20 PRINT I * K + 1", "15 IF I = 2 THEN GOTO 30", "RUN", "RUN")) {
+            repl.execute(input);
+        }
+        assertEquals("3.0\n7.0\nREADY\n3.0\n7.0\nREADY\n", output.toString());
+        assertEquals(6, repl.parsedLines);
+
+        // errors name the line number, a line with errors is parsed again on RUN
+        output.reset();
+        for (String input : Arrays.asList("20", "12 PRINT A(1)", "RUN", "8 DIM A(2)", "40 PRINT A(5)", "RUN",
+                "45 NEXT J", "RUN", "NEW", "LIST", "LIST 10")) {
+            repl.execute(input);
+        }
+        assertEquals("12 PRINT A(1)\nError [Line 12]: Unknown function A\n"
+                + "12 PRINT A(1)\nError [Line 12]: Unknown function A\nREADY\n"
+                + "0.0\n0.0\n0.0\n40 PRINT A(5)\nError [Line 40]: Index A(5) out of bounds for A(2)\nREADY\n"
+                + "45 NEXT J\nError [Line 45]: NEXT without FOR\nREADY\n"
+                + "Unknown command LIST 10\n", output.toString());
+        assertFalse(repl.execute("bye"));
+
+        // loop ids are given out when linking, a FOR entered many times leaves no loop state behind
+        List<String> text = new ArrayList<>(Collections.nCopies(51, (String) null));
+        JBasic parser = JBasic.lineParser(text, new JBasicOptions());
+        for (int i = 0; i < 100; i++) {
+            parser.parseLine(10, "10 FOR I = 1 TO " + i);
+        }
+        List<String> lines = Arrays.asList("10 FOR I = 1 TO 3", "20 FOR J = 1 TO 2", "30 LET S = S + I * J",
+                "40 NEXT J", "50 NEXT I");
+        int[] numbers = new int[lines.size()];
+        Statement[] statements = new Statement[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            numbers[i] = (i + 1) * 10;
+            text.set(numbers[i], lines.get(i));
+            statements[i] = parser.parseLine(numbers[i], lines.get(i));
+        }
+        JBasic linked = parser.linkLines(numbers, statements);
+        assertEquals(0, linked.getErrors().size());
+        JBasicContext context = linked.createContext(new PrintStream(OutputStream.nullOutputStream()));
+        assertEquals(2, context.loopLimits.length);
+        linked.run(context);
+        assertEquals(18.0, context.getVariable("S"));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testMatStatements(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 DIM A(3, 2), B(3, 2), C(2, 8), P(3, 8), Q(3, 8), S(3, 2), R(3, 2), D(3, 2), F(3, 2)",
+                "15 DIM T(2, 3), U(2, 3), M(1, 1), V(2)",
+                "20 FOR I = 0 TO 3",
+                "30 FOR J = 0 TO 2",
+                "40 LET A(I, J) = I * 3 + J / 7",
+                "50 LET B(I, J) = SIN(I - J * 2)",
+                "60 NEXT J",
+                "70 NEXT I",
+                "80 FOR I = 0 TO 2",
+                "90 FOR J = 0 TO 8",
+                "100 LET C(I, J) = COS(I * J) / 3",
+                "110 NEXT J",
+                "120 NEXT I",
+                "130 MAT P = A * C",
+                "140 MAT S = A - B",
+                "150 MAT D = (K + 0.5) * S",
+                "160 MAT T = TRN(A)",
+                // the same as FOR loops
+                "170 FOR I = 0 TO 3",
+                "180 FOR J = 0 TO 8",
+                "190 LET X = 0",
+                "200 FOR K = 0 TO 2",
+                "210 LET X = X + A(I, K) * C(K, J)",
+                "220 NEXT K",
+                "230 LET Q(I, J) = X",
+                "240 NEXT J",
+                "250 FOR J = 0 TO 2",
+                "260 LET R(I, J) = A(I, J) - B(I, J)",
+                "270 LET F(I, J) = 0.5 * R(I, J)",
+                "280 LET U(J, I) = A(I, J)",
+                "290 NEXT J",
+                "300 NEXT I",
+                // the product of M with itself needs a copy of M
+                "310 LET M(0, 0) = 1",
+                "320 LET M(0, 1) = 2",
+                "330 LET M(1, 0) = 3",
+                "340 LET M(1, 1) = 4",
+                "350 MAT M = M * M",
+                "360 MAT B = CON",
+                "370 MAT A = B + B",
+                "380 MAT B = ZER",
+                "390 MAT V = CON"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        JBasicContext context = interpreter.createContext(new PrintStream(OutputStream.nullOutputStream()));
+        interpreter.run(context);
+        // arrays get their slots in the order of the DIM statements
+        List<String> names = Arrays.asList("A", "B", "C", "P", "Q", "S", "R", "D", "F", "T", "U", "M", "V");
+        BasicArray[] arrays = context.arrays;
+        assertArrayEquals(arrays[names.indexOf("Q")].values, arrays[names.indexOf("P")].values);
+        assertArrayEquals(arrays[names.indexOf("R")].values, arrays[names.indexOf("S")].values);
+        assertArrayEquals(arrays[names.indexOf("F")].values, arrays[names.indexOf("D")].values);
+        assertArrayEquals(arrays[names.indexOf("U")].values, arrays[names.indexOf("T")].values);
+        assertArrayEquals(new double[]{7, 10, 15, 22}, arrays[names.indexOf("M")].values);
+        double[] twos = new double[12];
+        Arrays.fill(twos, 2.0);
+        assertArrayEquals(twos, arrays[names.indexOf("A")].values);
+        assertArrayEquals(new double[12], arrays[names.indexOf("B")].values);
+        assertArrayEquals(new double[]{1, 1, 1}, arrays[names.indexOf("V")].values);
+    }
+
+    @Test
+    void testMatErrors() {
+        JBasic sizes = new JBasic("10 DIM A(2), B(3)\n20 MAT A = B");
+        BasicRuntimeException error = assertThrows(BasicRuntimeException.class,
+                () -> sizes.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 1]: A(2) and B(3) differ in size", error.getMessage());
+        JBasic product = new JBasic("10 DIM A(2, 2), B(2, 1)\n20 MAT A = B * B");
+        error = assertThrows(BasicRuntimeException.class,
+                () -> product.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 1]: Cannot multiply B(2, 1) by B(2, 1)", error.getMessage());
+        JBasic result = new JBasic("10 DIM A(2), B(2, 3)\n20 MAT A = TRN(B)");
+        error = assertThrows(BasicRuntimeException.class,
+                () -> result.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 1]: A(2) cannot hold a result of 4 by 3 elements", error.getMessage());
+        assertEquals(Arrays.asList("10 MAT X = CON\nError [Line 0]: Array X is not declared with DIM",
+                "20 MAT Y = Y + Y\nError [Line 1]: Array Y is not declared with DIM"),
+                new JBasic("10 MAT X = CON\n20 MAT Y = Y + Y").getErrors().subList(0, 2));
+    }
+
+    @Test
+    void testMatKernels() {
+        assumeTrue(MatKernels.VECTOR != null, "the Vector API is not available");
+        Random random = new Random(42);
+        int rows = 7;
+        int inner = 13;
+        int columns = 11;
+        double[] a = random.doubles(rows * inner, -10, 10).toArray();
+        double[] b = random.doubles(inner * columns, -10, 10).toArray();
+        double[] c = random.doubles(rows * inner, -10, 10).toArray();
+        double[] expected = new double[rows * columns];
+        double[] actual = new double[rows * columns];
+        MatKernels.SCALAR.multiply(a, b, expected, rows, inner, columns);
+        MatKernels.VECTOR.multiply(a, b, actual, rows, inner, columns);
+        assertArrayEquals(expected, actual);
+        expected = new double[a.length];
+        actual = new double[a.length];
+        MatKernels.SCALAR.add(a, c, expected);
+        MatKernels.VECTOR.add(a, c, actual);
+        assertArrayEquals(expected, actual);
+        MatKernels.SCALAR.subtract(a, c, expected);
+        MatKernels.VECTOR.subtract(a, c, actual);
+        assertArrayEquals(expected, actual);
+        MatKernels.SCALAR.scale(-1.5, a, expected);
+        MatKernels.VECTOR.scale(-1.5, a, actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void testPaletteClampsColors() {
+        assertEquals(0x000000, FrameBuffer.colorOf(-3));
+        assertEquals(0xffffff, FrameBuffer.colorOf(8));
+        assertEquals(0xffffff, FrameBuffer.colorOf(100));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testHeadlessPngOutput(Engine engine, @TempDir Path tempDir) throws IOException {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 SCREEN 13",
+                "20 FOR I = 0 TO 319",
+                "30 PLOT I , 100 , 8",
+                "40 NEXT I"
+        ));
+        Path output = tempDir.resolve("line.png");
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine)
+                .headless(output, ScreenFormat.PNG).frameEvery(100));
+        assertEquals(0, interpreter.getErrors().size());
+        interpreter.run(new PrintStream(OutputStream.nullOutputStream()));
+
+        BufferedImage image = ImageIO.read(output.toFile());
+        assertEquals(FrameBuffer.WIDTH, image.getWidth());
+        assertEquals(FrameBuffer.HEIGHT, image.getHeight());
+        assertEquals(0xffffff, image.getRGB(319, 100) & 0xffffff);
+        assertEquals(0x000000, image.getRGB(319, 99) & 0xffffff);
+        // intermediate frames after 100, 200 and 300 plots
+        BufferedImage second = ImageIO.read(tempDir.resolve("line-0002.png").toFile());
+        assertEquals(0xffffff, second.getRGB(199, 100) & 0xffffff);
+        assertEquals(0x000000, second.getRGB(200, 100) & 0xffffff);
+        assertTrue(Files.exists(tempDir.resolve("line-0003.png")));
+        assertFalse(Files.exists(tempDir.resolve("line-0004.png")));
+    }
+
+    @Test
+    void testHeadlessRawOutput(@TempDir Path tempDir) throws IOException {
+        Path output = tempDir.resolve("frames.rgb");
+        JBasic interpreter = new JBasic("10 SCREEN 13\n20 PLOT 1 , 0 , 4\n30 PLOT 2 , 0 , 8",
+                new JBasicOptions().headless(output, ScreenFormat.RAW).frameEvery(1));
+        interpreter.run(new PrintStream(OutputStream.nullOutputStream()));
+
+        byte[] frames = Files.readAllBytes(output);
+        int frameSize = FrameBuffer.WIDTH * FrameBuffer.HEIGHT * 3;
+        // one frame per PLOT and the final frame
+        assertEquals(3 * frameSize, frames.length);
+        assertEquals((byte) 0x80, frames[3]);
+        assertEquals(0, frames[6]);
+        assertEquals((byte) 0xff, frames[2 * frameSize + 6]);
+    }
+
+    @Test
+    void testChannelSinkFormatsLikePrintStream() {
+        double[] values = {0.0, -0.0, 1.0, -1.0, 3.14, 1e-7, 123456789.0, 1e21, 0.1 + 0.2,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE};
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream expectedStream = new PrintStream(expected, true, StandardCharsets.UTF_8);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        OutputSink sink = new ChannelSink(Channels.newChannel(actual), null, 64, 0);
+        for (double value : values) {
+            expectedStream.println(value);
+            sink.println(value);
+        }
+        sink.flush();
+        assertEquals(expected.toString(StandardCharsets.UTF_8), actual.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testChannelSinkWritesInChunks() {
+        List<Integer> writes = new ArrayList<>();
+        WritableByteChannel channel = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int written = src.remaining();
+                writes.add(written);
+                src.position(src.limit());
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        JBasic interpreter = new JBasic("10 FOR I = 1 TO 1000\n20 PRINT I\n30 NEXT I",
+                new JBasicOptions().outputBufferSize(1024).outputFlushMillis(0));
+        interpreter.run(channel);
+        int total = writes.stream().mapToInt(Integer::intValue).sum();
+        int expected = 0;
+        for (int i = 1; i <= 1000; i++) {
+            expected += (Double.toString(i) + System.lineSeparator()).length();
+        }
+        assertEquals(expected, total);
+        // every write but the final flush carries a nearly full buffer
+        assertTrue(writes.size() <= total / (1024 - 32) + 1, "writes: " + writes);
+    }
+
+    @Test
+    void testChannelSinkFlushesAfterInterval() throws InterruptedException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        OutputSink sink = new ChannelSink(Channels.newChannel(output), null, 1024, 20);
+        sink.println(1.0);
+        // nothing else is printed, the interval alone writes the line
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (output.size() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("1.0" + System.lineSeparator(), output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testChannelSinkReportsTimerFailure() throws InterruptedException {
+        CountDownLatch attempted = new CountDownLatch(1);
+        WritableByteChannel broken = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                attempted.countDown();
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        OutputSink sink = new ChannelSink(broken, null, 1024, 20);
+        sink.println(1.0);
+        assertTrue(attempted.await(5, TimeUnit.SECONDS));
+        // the timed write failed, the next PRINT reports it
+        UncheckedIOException error = assertThrows(UncheckedIOException.class, () -> sink.println(2.0));
+        assertEquals("Broken pipe", error.getCause().getMessage());
+    }
+
+    @Test
+    void testUnbufferedOutputOption() {
+        JBasic interpreter = new JBasic("10 PRINT 1\n20 PRINT 2.5", new JBasicOptions().bufferedOutput(false));
+        JBasicContext context = interpreter.createContext(System.out);
+        assertTrue(context.out instanceof StreamSink);
+        assertEquals("1.0\n2.5\n", captureRunOutput(interpreter));
+    }
+
+    @Test
+    void testPrintDoesNotAllocate() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        WritableByteChannel discard = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int written = src.remaining();
+                src.position(src.limit());
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        OutputSink sink = new ChannelSink(discard, null, 8192, 0);
+        for (int i = 0; i < 20_000; i++) {
+            sink.println(i * 0.37);
+        }
+        long threadId = Thread.currentThread().threadId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            sink.println(i * 0.37);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(allocated < 64 * 1024, String.format("allocated %d bytes for 100000 values", allocated));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testExpressionsWithoutSpaces(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET A=3",
+                "",
+                "20 LET B=-A+.5",
+                "30 PRINT A+B*2",
+                "40 PRINT 1E3-ABS(B)",
+                "50 IF A>=3 THEN PRINT(A-1)/2",
+                "60 FOR I=1 TO 2:REM",
+                "70 NEXT I"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(Arrays.asList("60 FOR I=1 TO 2:REM\nError [Line 6, Column 16]: Unexpected :"),
+                interpreter.getErrors());
+        assertEquals("-2.0\n997.5\n1.0\n", captureRunOutput(interpreter));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testProfiler(Engine engine, @TempDir Path dir) throws Exception {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET S = 0",
+                "20 FOR I = 1 TO 3",
+                "loop: LET S = S + I",
+                "40 NEXT I",
+                "50 PRINT S"
+        ));
+        Path report = dir.resolve("profile.csv");
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine).profile(report, ProfileFormat.CSV));
+        JBasicContext context = interpreter.createContext(new PrintStream(OutputStream.nullOutputStream()));
+        interpreter.run(context);
+        Profiler profiler = context.profiler;
+        assertEquals(6.0, context.getVariable("S"));
+        assertEquals(1, profiler.getCount(0));
+        assertEquals(1, profiler.getCount(1));
+        assertEquals(3, profiler.getCount(2));
+        assertEquals(3, profiler.getCount(3));
+        assertEquals(9, profiler.getExecutedStatements());
+        assertTrue(profiler.getTotalNanos() > 0);
+
+        List<String> csv = Files.readAllLines(report);
+        assertEquals("index,line,label,count,nanos,source", csv.get(0));
+        assertEquals(6, csv.size());
+        assertTrue(csv.stream().anyMatch(line -> line.matches("2,2,loop,3,\\d+,loop: LET S = S \\+ I")), csv.toString());
+        assertTrue(profiler.report(ProfileFormat.JSON).contains("\"label\":\"loop\",\"count\":3"));
+        assertTrue(profiler.getReport().startsWith("Profile: 9 statements executed in "));
+        assertEquals(5, profiler.getHotSpots().length);
+
+        // registered with JMX while running only
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var query = new javax.management.ObjectName("org.feyvi.serkan.jbasic:type=Profiler,*");
+        int registered = server.queryNames(query, null).size();
+        profiler.register();
+        assertEquals(registered + 1, server.queryNames(query, null).size());
+        profiler.unregister();
+        assertEquals(registered, server.queryNames(query, null).size());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testDimArrays(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET N = 4",
+                "20 DIM F(N * 5), M(2, 3)",
+                "30 LET F(1) = 1",
+                "40 FOR I = 2 TO 20",
+                "50 LET F(I) = F(I - 1) + F(I - 2)",
+                "60 NEXT I",
+                "70 PRINT F(20)",
+                "80 FOR I = 0 TO 2",
+                "90 FOR J = 0 TO 3",
+                "100 LET M(I, J) = I * 10 + J",
+                "110 NEXT J",
+                "120 NEXT I",
+                "130 PRINT M(2, 1) + M(1, 3) + F(2.9)"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        JBasicContext context = interpreter.createContext(new PrintStream(OutputStream.nullOutputStream()));
+        interpreter.run(context);
+        assertEquals(6765.0, context.arrays[0].get(20, 0, 0));
+        // row-major: M(1, 3) is element 1 * 4 + 3
+        assertEquals(13.0, context.arrays[1].values[7]);
+        assertEquals("6765.0\n35.0\n", captureRunOutput(interpreter));
+        if (engine == Engine.COMPILER) {
+            assertNotNull(interpreter.getCompiledProgram());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(Engine.class)
+    void testArrayRuntimeErrors(Engine engine) {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 DIM A(10)",
+                "20 LET A(10) = 1",
+                "30 PRINT A(I + 11)"
+        ));
+        JBasic interpreter = new JBasic(source, new JBasicOptions().engine(engine));
+        assertEquals(0, interpreter.getErrors().size());
+        BasicRuntimeException error = assertThrows(BasicRuntimeException.class,
+                () -> interpreter.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals(2, error.getLine());
+        assertEquals("Error [Line 2]: Index A(11) out of bounds for A(10)", error.getMessage());
+
+        JBasic undimensioned = new JBasic("10 IF 1 = 0 THEN DIM B(3, 3)\n20 LET B(1, -1) = 2",
+                new JBasicOptions().engine(engine));
+        error = assertThrows(BasicRuntimeException.class,
+                () -> undimensioned.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 1]: Array B used before DIM", error.getMessage());
+
+        JBasic negative = new JBasic("10 DIM C(-1)", new JBasicOptions().engine(engine));
+        error = assertThrows(BasicRuntimeException.class,
+                () -> negative.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 0]: Invalid size for array C", error.getMessage());
+
+        // sizes whose element count overflows a long
+        JBasic huge = new JBasic("10 DIM D(1E19)", new JBasicOptions().engine(engine));
+        error = assertThrows(BasicRuntimeException.class,
+                () -> huge.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 0]: Array D is too large", error.getMessage());
+        JBasic square = new JBasic("10 DIM E(4294967295, 4294967295)", new JBasicOptions().engine(engine));
+        error = assertThrows(BasicRuntimeException.class,
+                () -> square.run(new PrintStream(OutputStream.nullOutputStream())));
+        assertEquals("Error [Line 0]: Array E is too large", error.getMessage());
+    }
+
+    @Test
+    void testArrayParseErrors() {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET A(1) = 2",
+                "20 DIM B(5)",
+                "30 PRINT B(1, 2)",
+                "40 DIM B(2, 2)"
+        ));
+        JBasic interpreter = new JBasic(source);
+        assertEquals(Arrays.asList(
+                "10 LET A(1) = 2\nError [Line 0]: Array A is not declared with DIM",
+                "30 PRINT B(1, 2)\nError [Line 2]: Array B needs one index",
+                "40 DIM B(2, 2)\nError [Line 3]: Array B was declared with one index"
+        ), interpreter.getErrors());
+    }
+
+    @Test
+    void testSchedulerOutputWhileRunning() throws Exception {
+        JBasic printThenLoop = new JBasic("10 PRINT 1\n20 LET X = X + 1\n30 GOTO 20");
+        try (JBasicScheduler scheduler = new JBasicScheduler()) {
+            ProgramRun run = scheduler.submit(printThenLoop, 0, Duration.ofSeconds(30));
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (run.getOutput().isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals("1.0\n", run.getOutput());
+            assertEquals(ProgramRun.Status.RUNNING, run.getStatus());
+            run.cancel();
+            assertEquals(ProgramRun.Status.CANCELLED, run.await().getStatus());
+        }
+    }
+
+    @Test
+    void testSchedulerLimits() throws Exception {
+        JBasic endless = new JBasic("10 LET X = X + 1\n20 GOTO 10");
+        JBasic hello = new JBasic("10 FOR I = 1 TO 3\n20 PRINT I\n30 NEXT I", new JBasicOptions().engine(Engine.COMPILER));
+        JBasic failing = new JBasic("10 DIM A(2)\n20 PRINT A(3)");
+        try (JBasicScheduler scheduler = new JBasicScheduler()) {
+            ProgramRun budget = scheduler.submit(endless, 10_000, null);
+            ProgramRun timeout = scheduler.submit(endless, 0, Duration.ofMillis(50));
+            ProgramRun cancelled = scheduler.submit(endless);
+            List<ProgramRun> finished = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                finished.add(scheduler.submit(hello, 1_000, Duration.ofSeconds(30)));
+            }
+            ProgramRun error = scheduler.submit(failing);
+
+            assertEquals(ProgramRun.Status.OUT_OF_BUDGET, budget.await().getStatus());
+            assertEquals(10_000, budget.getExecutedStatements());
+            assertEquals(ProgramRun.Status.TIMED_OUT, timeout.await().getStatus());
+            assertTrue(timeout.getLatency().toMillis() >= 50);
+            cancelled.cancel();
+            assertEquals(ProgramRun.Status.CANCELLED, cancelled.await().getStatus());
+            for (ProgramRun run : finished) {
+                assertEquals(ProgramRun.Status.FINISHED, run.await().getStatus());
+                assertEquals("1.0\n2.0\n3.0\n", run.getOutput());
+                assertEquals(7, run.getExecutedStatements());
+            }
+            assertEquals(ProgramRun.Status.FAILED, error.await().getStatus());
+            assertEquals("Error [Line 1]: Index A(3) out of bounds for A(2)", error.getError().getMessage());
+
+            assertEquals(104, scheduler.getSubmittedPrograms());
+            assertEquals(100, scheduler.getCompletedPrograms());
+            assertEquals(1, scheduler.getFailedPrograms());
+            assertEquals(3, scheduler.getStoppedPrograms());
+            assertEquals(0, scheduler.getRunningPrograms());
+            assertTrue(scheduler.getExecutedStatements() >= 10_700);
+            assertTrue(scheduler.getMaxLatency().compareTo(scheduler.getAverageLatency()) >= 0);
+            assertTrue(scheduler.getProgramsPerSecond() > 0);
+            assertTrue(finished.stream().allMatch(run -> run.virtualThread));
+        }
+    }
+
+    @Test
+    void testLexerTokens() {
+        Lexer lexer = new Lexer();
+        lexer.reset("plot: IF X1<>2.5e-1 THEN GOTO 90 ' ");
+        StringBuilder tokens = new StringBuilder();
+        while (lexer.type != Lexer.TokenType.END) {
+            tokens.append(lexer.type).append('@').append(lexer.column()).append('=').append(lexer.text()).append(' ');
+            lexer.next();
+        }
+        assertEquals("IDENTIFIER@1=plot PUNCTUATION@5=: IDENTIFIER@7=IF IDENTIFIER@10=X1 OPERATOR@12=<> "
+                + "NUMBER@14=2.5e-1 IDENTIFIER@21=THEN IDENTIFIER@26=GOTO NUMBER@31=90 INVALID@34=' ",
+                tokens.toString());
+        lexer.reset("2.5e-1 12345678901234567 7");
+        assertEquals(0.25, lexer.number);
+        lexer.next();
+        assertEquals(12345678901234567.0, lexer.number);
+        lexer.next();
+        assertEquals(7.0, lexer.number);
+    }
+
+    @Test
+    void testSyntaxErrorColumns() {
+        List<String> source = new ArrayList<>(Arrays.asList(
+                "10 LET X = (1 + 2",
+                "20 PRINT X $",
+                "30 FOR I = 1 10",
+                "40 NEXT I",
+                "50 FROB X"
+        ));
+        JBasic interpreter = new JBasic(source);
+        assertEquals(Arrays.asList(
+                "10 LET X = (1 + 2\nError [Line 0, Column 18]: Expecting ) but got end of line",
+                "20 PRINT X $\nError [Line 1, Column 12]: Unexpected $",
+                "30 FOR I = 1 10\nError [Line 2, Column 14]: Expecting TO but got 10",
+                "50 FROB X\nError [Line 4, Column 4]: Unknown statement FROB"
+        ), interpreter.getErrors());
+    }
+
+    @Test
+    void testUnmatchedForAndNext() {
+        JBasic interpreter = new JBasic("10 NEXT I\n20 FOR J = 1 TO 2");
+        assertEquals(Arrays.asList(
+                "10 NEXT I\nError [Line 0]: NEXT without FOR",
+                "20 FOR J = 1 TO 2\nError [Line 1]: FOR without NEXT"
+        ), interpreter.getErrors());
+    }
+
+    @Test
+    void testParseLargeSource() {
+        List<String> source = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            source.add(String.format("%d LET X%d=X%d*2+SQR(%d)-(Y/3)", i * 10, i % 100, (i + 1) % 100, i));
+        }
+        JBasic interpreter = new JBasic(source);
+        assertEquals(0, interpreter.getErrors().size());
+        assertEquals(101, interpreter.getSymbols().size());
+    }
+}